@@ -1,6 +1,7 @@
 package com.cosocket.syncsmart;
 import java.util.Vector;
 import com.cosocket.syncsmart.cpisync.Partition;
+import com.cosocket.syncsmart.cpisync.ReconcileEngine;
 import com.cosocket.syncsmart.cpisync.Reconciler;
 import com.cosocket.syncsmart.cpisyncproto.Store;
 
@@ -48,8 +49,9 @@ public class LocalTest {
      * Constructs two Store instances and populates the first set with the number of specified items and the second set such
      * that the specified number differences between the sets are achieved. Then it calls the Reconciler.reconcile method
      * to reconcile the differences. Any computed differences result in transferring the items corresponding to the differences
-     * from one set to the other. Upon failure the process is repeated on a partition and the space is traversed in DFS order. 
-     * @param args first-set-size, number-of-differences; 10000 and 100 are chosen if no command line arguments are provided.
+     * from one set to the other. Upon failure the process is repeated on a partition and the space is traversed in DFS order,
+     * or breadth-first in parallel by the ReconcileEngine if bfs is specified.
+     * @param args first-set-size, number-of-differences [bfs]; 10000 and 100 are chosen if no command line arguments are provided.
      * @throws Exception when any of the components throw an exception
      */
     public static void main(String[] args) throws Exception {
@@ -59,6 +61,15 @@ public class LocalTest {
         long start_time, end_time;
         start_time = System.currentTimeMillis();
                     
+        int nmessages = (args.length > 2 && args[2].equals("bfs")) ? reconcileBFS() : reconcileDFS();
+        
+        end_time = System.currentTimeMillis();
+        System.out.println("Time: " + (end_time-start_time));
+        System.out.println("Messages: " + nmessages);
+        System.out.println("A has: " + storeA.cardinality() + " B has: " + storeB.cardinality());  
+    }
+    
+    private static int reconcileDFS() throws Exception {
         int nmessages = 0;
         Vector<long[]> deltas = new Vector<long[]>();
         long[] n = Partition.root(0,Reconciler.getDatamax());
@@ -81,11 +92,13 @@ public class LocalTest {
             Partition.next(success, n, n);
             deltas.clear();
         }
-        
-        end_time = System.currentTimeMillis();
-        System.out.println("Time: " + (end_time-start_time));
-        System.out.println("Messages: " + nmessages);
-        System.out.println("A has: " + storeA.cardinality() + " B has: " + storeB.cardinality());  
+        return nmessages;
+    }
+    
+    private static int reconcileBFS() throws Exception {
+        return new ReconcileEngine().reconcile(storeA, storeB, new ReconcileEngine.Listener() {
+            public void deltas(long begin, long end, long[] push, long[] pull) throws Exception {handleDeltas(push, pull);}
+        });
     }
     
     private static void populateSets(String[] args) throws Exception {
@@ -122,7 +135,7 @@ public class LocalTest {
          System.out.println("A has: " + storeA.cardinality() + " B has: " + storeB.cardinality());
     }
     
-    private static void handleDeltas(long[] push, long[] pull) throws Exception {     
+    private static synchronized void handleDeltas(long[] push, long[] pull) throws Exception {     
         if (push.length > 0) {
             for (long i : push) storeB.addIfNew(i, storeA.getValue(i));
             System.out.print("push[" + push.length + "]: ");
@@ -0,0 +1,108 @@
+package com.cosocket.syncsmart.cpisync;
+import java.util.Random;
+import java.util.Vector;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Chooses the Tuning of a peer from the cost of CPIsync on this host, measured once by timing the 
+ * solution of a known difference, and from the MTU, bandwidth and round trip time of the transport.
+ * Solving a difference of d keys costs about c d^2, so maxdiff is the largest d that is solved in
+ * a round trip, since a partition that fails costs a round trip to split it, and that a datagram
+ * holds. Summary vectors are used for partitions of up to as many keys as can be sent in the time
+ * a CPI vector is sent and solved, partitions holding the items of a couple of round trips are
+ * moved in bulk, and a failed partition is split into as many children as there are CPI vectors 
+ * that can be sent in a round trip. Sending a byte costs the inverse of the bandwidth, which is 
+ * given or measured from the acknowledgements of the protocol. When it is not known, it is taken
+ * to be the round trip time over two full datagrams, which is accurate on slow links such as a 
+ * 50 kbps radio link, but far too high on a long and fast one such as a satellite or WAN link.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public final class Calibration {
+    private static final int    hdr       = 160;   // bytes of IP, UDP and SyncPDU headers in a datagram, besides the vector
+    private static final int    itembytes = 256;   // assumed bytes of an item PDU when moving items in bulk
+    private static final int    benchdiff = 32;    // difference at which the solver is timed
+    private static final int    rounds    = 16;
+    private static volatile double solve  = 0;     // seconds to solve a difference of d keys, per d^2
+
+    private Calibration() {}
+
+    /**
+     * Return the time to solve a CPI vector per squared difference in keys, timed on first use
+     * @return the time in seconds to solve a difference of d keys divided by d^2
+     * @throws Exception if the solver fails on the known difference
+     */
+    public static final double solveCost() throws Exception {
+        if (solve > 0) return solve;
+        Random r  = new Random(1);
+        long[] dA = new long[benchdiff + benchdiff / 2];
+        long[] dB = new long[benchdiff + benchdiff / 2];
+        for (int i = 0; i < benchdiff; i++) dA[i] = dB[i] = Reconciler.randomKey(r);
+        for (int i = benchdiff; i < dA.length; i++) {dA[i] = Reconciler.randomKey(r); dB[i] = Reconciler.randomKey(r);}
+        int len   = Tuning.DEFAULT.syncLength(benchdiff);
+        long[] eA = Reconciler.syncArray(false, dA, len);
+        long[] eB = Reconciler.syncArray(false, dB, len);
+        Vector<long[]> deltas = new Vector<long[]>();
+        long t = 0;
+        for (int i = 0; i < 4 * rounds; i++) {  // the first three quarters warm up
+            long s = System.nanoTime();
+            if (!Reconciler.reconcile(false, eA, eB, dA.length, dB.length, deltas)) throw new Exception("Calibration failed");
+            if (i >= 3 * rounds) t += System.nanoTime() - s;
+            deltas.clear();
+        }
+        solve = 1e-9 * t / rounds / ((double) benchdiff * benchdiff);
+        return solve;
+    }
+
+    /**
+     * Chooses the tuning for reconciling a set over a transport
+     * @param mtu the largest datagram, in bytes, that the transport sends unfragmented
+     * @param rtt the observed round trip time in seconds, 0 if unknown
+     * @param bandwidth the bandwidth of the transport in bytes per second, 0 if unknown
+     * @param cardinality the number of keys in the set
+     * @return the tuning to propose to the peer, Tuning.DEFAULT if rtt is unknown
+     * @throws Exception if the solver cannot be timed
+     */
+    public static final Tuning tune(int mtu, double rtt, double bandwidth, long cardinality) throws Exception {
+        if (mtu <= hdr || rtt <= 0) return Tuning.DEFAULT;
+        double cost  = solveCost();
+        double bytet = bandwidth > 0 ? 1 / bandwidth : rtt / (2.0 * mtu);   // seconds per byte
+        int fit      = (mtu - hdr) / 8;     // keys or evaluations in a datagram
+        int maxdiff  = (int) Math.min(fit - Reconciler.redundant, Math.sqrt(rtt / cost));
+        maxdiff      = maxdiff < Reconciler.mindiff ? Reconciler.mindiff : maxdiff;
+        double cpi   = 8 * bytet * (maxdiff + Reconciler.redundant) + cost * maxdiff * maxdiff;
+        int svthresh = (int) Math.min(fit, cpi / (8 * bytet));
+        long items   = (long) (2 * rtt / (itembytes * bytet));
+        long bulk    = cardinality > items ? items * (Reconciler.getDatamax() / cardinality) : Reconciler.getDatamax();
+        int fanout   = (int) (rtt / (8 * bytet * (maxdiff + Reconciler.redundant)));
+        return new Tuning(svthresh, maxdiff, bulk, fanout);
+    }
+}
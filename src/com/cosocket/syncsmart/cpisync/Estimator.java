@@ -0,0 +1,168 @@
+package com.cosocket.syncsmart.cpisync;
+import java.util.Arrays;
+import java.util.Random;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Estimates the size of the symmetric difference between two sets from min-wise sketches.
+ * The sketch of a set is the bottom-k, i.e., the k smallest values of a mixing hash of its keys, 
+ * which fits in a datagram. The Jaccard similarity J of the sets is estimated from the fraction 
+ * of the bottom-k of the union of the two sketches that is present in both, and the difference 
+ * is then (1 - J) / (1 + J) times the sum of the set sizes. Min-wise sketches are accurate for 
+ * large differences, which is what is needed to avoid failed CPI round trips, but cannot resolve
+ * differences much smaller than (mA + mB) / k, so an upper bound is provided as well, from the 
+ * variance of the estimate of J.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public class Estimator {
+    private static final int k = 128;  // values in a sketch
+
+    /**
+     * Computes the min-wise sketch of a set of keys
+     * @param keys the keys in the set (or partition)
+     * @return the sketch, ascending, with min(k, keys.length) values
+     */
+    public static final long[] sketch(long[] keys) {
+        long[] heap = new long[k];  // max-heap of the k smallest values seen
+        int n = 0;
+        for (long key : keys) {
+            long h = mix(key);
+            if (n < k) {
+                int i = n++;
+                while (i > 0 && heap[(i - 1) / 2] < h) {heap[i] = heap[(i - 1) / 2]; i = (i - 1) / 2;}
+                heap[i] = h;
+            } else if (h < heap[0]) {
+                int i = 0;
+                while (true) {
+                    int c = 2 * i + 1;
+                    if (c >= n) break;
+                    if (c + 1 < n && heap[c + 1] > heap[c]) c++;
+                    if (heap[c] <= h) break;
+                    heap[i] = heap[c];
+                    i = c;
+                }
+                heap[i] = h;
+            }
+        }
+        long[] r = Arrays.copyOf(heap, n);
+        Arrays.sort(r);
+        return r;
+    }
+
+    /**
+     * Estimates the number of keys in exactly one of two sets from their sketches
+     * @param skA sketch of the first set (A)
+     * @param mA size of the first set
+     * @param skB sketch of the other set (B)
+     * @param mB size of the other set
+     * @return the estimated size of A - B plus the size of B - A
+     */
+    public static final int estimate(long[] skA, int mA, long[] skB, int mB) {
+        if (mA + mB == 0) return 0;
+        int[] s   = sample(skA, skB);
+        int union = s[0], both = s[1];
+        if (skA.length < k && skB.length < k) return union - both;   // exact
+        if (union == 0) return mA + mB;
+        double jac = (double) both / union;
+        long d = Math.round((1 - jac) / (1 + jac) * ((long) mA + mB));
+        return (int) Math.max(Math.abs((long) mA - mB), Math.min(d, (long) mA + mB));
+    }
+
+    /**
+     * Upper bound on the number of keys in exactly one of two sets, three standard deviations of 
+     * the bottom-k estimate of 1 - J, i.e., sqrt(J (1 - J) / k), above the estimate. The error 
+     * thus depends on the fraction of the keys that differ, not on the set sizes, and a difference
+     * that does not show up in the sketches yields the estimate itself; a CPI vector that turns out 
+     * too short fails to reconcile and its partition is split
+     * @param skA sketch of the first set (A)
+     * @param mA size of the first set
+     * @param skB sketch of the other set (B)
+     * @param mB size of the other set
+     * @return the bound on the size of A - B plus the size of B - A
+     */
+    public static final int upper(long[] skA, int mA, long[] skB, int mB) {
+        long d = estimate(skA, mA, skB, mB);
+        int[] s = sample(skA, skB);
+        if ((skA.length < k && skB.length < k) || s[0] == 0) return (int) d;   // exact, or nothing to sample
+        long m   = (long) mA + mB;
+        double f = 1 - (double) s[1] / s[0];
+        double u = f + 3 * Math.sqrt(f * (1 - f) / s[0]);
+        if (u >= 1) return (int) m;
+        return (int) Math.min(m, Math.max(d, (long) Math.ceil(u / (2 - u) * m)));
+    }
+
+    // Size of the union of the bottom-k of two sketches, and the number of its values in both; 
+    // values below both thresholds have known membership in both sets
+    private static final int[] sample(long[] skA, long[] skB) {
+        long thr = Math.min(skA.length < k ? Long.MAX_VALUE : skA[skA.length - 1], 
+                            skB.length < k ? Long.MAX_VALUE : skB[skB.length - 1]);
+        boolean exact = skA.length < k && skB.length < k;  // sketches hold all keys
+        int union = 0, both = 0;
+        for (int i = 0, j = 0; (exact || union < k) && (i < skA.length || j < skB.length); union++) {
+            long a = i < skA.length ? skA[i] : Long.MAX_VALUE;
+            long b = j < skB.length ? skB[j] : Long.MAX_VALUE;
+            if (Math.min(a, b) > thr) break;
+            if (a == b) {both++; i++; j++;} else if (a < b) i++; else j++;
+        }
+        return new int[]{union, both};
+    }
+
+    /**
+     * The main method tests that sets of 10000 keys differing in 3 get short CPI vectors, unless
+     * one of the differences is in the sketches, which happens in about 4% of the trials
+     * @param args ignored
+     * @throws Exception if the vectors are not short in at least 90% of the trials
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing the bound for 10000 keys with 3 differences");
+        Random r   = new Random(1);
+        int trials = 100, shrt = 0;
+        for (int trial = 0; trial < trials; trial++) {
+            long[] a = new long[10000];
+            long[] b = new long[10001];
+            for (int i = 0; i < a.length; i++) a[i] = b[i] = Reconciler.hash(Long.toString(r.nextLong()).getBytes());
+            b[0]     = Reconciler.hash(Long.toString(r.nextLong()).getBytes());   // A - B and B - A of one each
+            b[10000] = Reconciler.hash(Long.toString(r.nextLong()).getBytes());   // and one more in B
+            int u = upper(sketch(a), a.length, sketch(b), b.length);
+            if (Tuning.DEFAULT.syncLength(u) < Tuning.DEFAULT.syncLength()) shrt++;
+        }
+        System.out.println("Short vectors in " + shrt + " of " + trials + " trials");
+        if (shrt < 9 * trials / 10) throw new Exception("Full length vectors for 3 differences");
+    }
+
+    // Stafford variant 13 of the 64-bit finalizer of MurmurHash3, non-negative
+    private static final long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return (x ^ (x >>> 31)) >>> 1;
+    }
+}
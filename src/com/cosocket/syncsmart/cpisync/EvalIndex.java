@@ -0,0 +1,208 @@
+package com.cosocket.syncsmart.cpisync;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import com.cosocket.syncsmart.cpisync.Reconciler;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Incrementally maintained CPI sync vectors of a set, so that they need not be recomputed from
+ * the keys of the set on every sync. The index is a binary tree aligned with the partitions 
+ * traversed by Partition over [0, Reconciler.getDatamax()), down to a given depth. It keeps the 
+ * evaluations of the characteristic polynomial and the number of keys for the root and every 
+ * left child. These are multiplied by the linear factors of a key at the sample points when the
+ * key is added, and divided by them when it is removed. The vector of a right child is derived 
+ * by dividing that of its parent by that of its left sibling, which halves memory and updates.
+ * A snapshot of the index can be saved to a buffer and loaded back, to avoid recomputing it.
+ * Updates are serialized by the lock of the index, each costing about depth * syncLength() 
+ * multiplications, so that writers to a store contend here even where its map admits them 
+ * concurrently; every update changes the root, which keeps the index from being striped as is.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public class EvalIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int  DEPTH = 8;   // default, nodes are 2^DEPTH vectors of Reconciler.syncLength() 
+    private final int    depth;
+    private final int    len   = Reconciler.syncLength();
+    private final long   max   = Reconciler.getDatamax();
+    private final long[] evl;      // vectors of root, left children of level 1, level 2, ... 
+    private final int[]  size;     // number of keys in each node
+    private final long[] tmp   = new long[len];
+
+    public EvalIndex() {this(DEPTH);}
+
+    /**
+     * Constructs an index of the partitions down to the given depth
+     * @param depth levels of partitions below the complete range [0, Reconciler.getDatamax())
+     */
+    public EvalIndex(int depth) {
+        int maxdepth = Long.numberOfTrailingZeros(max);
+        this.depth   = depth < 0 ? 0 : (depth > maxdepth ? maxdepth : depth);
+        this.size    = new int[1 << this.depth];
+        this.evl     = new long[size.length * len];
+        for (int i = 0; i < evl.length; i++) evl[i] = 1L;
+    }
+
+    /**
+     * Account for a key newly added to the set
+     * @param key the key added
+     * @throws Exception if the key is out of range or has no factors, in which case the index is unchanged
+     */
+    public synchronized void add(long key) throws Exception {
+        if (!Reconciler.validKey(key) || key >= max) throw new Exception("Key not in range");
+        Reconciler.factors(key, tmp, false);
+        update(key, 1);
+    }
+
+    /**
+     * Account for a key removed from the set
+     * @param key the key removed, which must have been added earlier
+     * @throws Exception if the key is out of range or has no factors, in which case the index is unchanged
+     */
+    public synchronized void remove(long key) throws Exception {
+        if (!Reconciler.validKey(key) || key >= max) throw new Exception("Key not in range");
+        Reconciler.factors(key, tmp, true);
+        update(key, -1);
+    }
+
+    /**
+     * Copies the leading evaluations of the CPI sync vector for the keys in [begin,end) into evl
+     * @param begin the beginning (inclusive) of the partition
+     * @param end the end (exclusive) of the partition
+     * @param evl array to be populated, at most Reconciler.syncLength() long 
+     * @return the number of keys in [begin,end), or -1 if the range is not an indexed partition
+     *         or evl is longer than the indexed vectors
+     */
+    public synchronized int get(long begin, long end, long[] evl) {
+        long width = end - begin;
+        if (begin < 0 || end > max || width <= 0 || !PF.ispow2(width) || begin % width != 0) return -1;
+        int level = Long.numberOfTrailingZeros(max) - Long.numberOfTrailingZeros(width);
+        if (level > depth || evl.length > len) return -1;
+        try {
+            long[] r = new long[len];
+            int n = node(level, begin / width, r);
+            System.arraycopy(r, 0, evl, 0, evl.length);
+            return n;
+        } catch (Exception e) {   // a left child with no inverse, as if not indexed
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written by save
+     * @return the size of the snapshot in bytes
+     */
+    public int bytes() {return 12 + 4 * size.length + 8 * evl.length;}
+
+    /**
+     * Writes a snapshot of the index at the position of b, e.g., into a memory-mapped file
+     * @param b the buffer, with at least bytes() remaining
+     */
+    public synchronized void save(ByteBuffer b) {
+        b.putInt(depth);
+        b.putInt(len);
+        b.putInt(Long.numberOfTrailingZeros(max));
+        for (int n : size) b.putInt(n);
+        b.asLongBuffer().put(evl);
+        b.position(b.position() + 8 * evl.length);
+    }
+
+    /**
+     * Replaces the index by a snapshot written by save at the position of b; the snapshot must be
+     * of an index of the same depth, vector length and range of keys
+     * @param b the buffer
+     * @return false, leaving the index unchanged, if the snapshot does not match the index
+     */
+    public synchronized boolean load(ByteBuffer b) {
+        if (b.remaining() < bytes() || b.getInt(b.position()) != depth || b.getInt(b.position() + 4) != len 
+            || b.getInt(b.position() + 8) != Long.numberOfTrailingZeros(max)) return false;
+        b.position(b.position() + 12);
+        for (int i = 0; i < size.length; i++) size[i] = b.getInt();
+        b.asLongBuffer().get(evl);
+        b.position(b.position() + 8 * evl.length);
+        return true;
+    }
+
+    // Index of the left child (even pos) at level > 0, or the root
+    private static final int index(int level, long pos) {return level == 0 ? 0 : (1 << (level - 1)) + (int) (pos >> 1);}
+
+    // Multiply the factors in tmp into the root and the left children on the path of key
+    private void update(long key, int delta) {
+        for (int level = 0; level <= depth; level++) {
+            long pos = key / (max >> level);
+            if (level > 0 && (pos & 1) != 0) continue;
+            int idx = index(level, pos);
+            int off = idx * len;
+            for (int i = 0; i < len; i++) evl[off + i] = PF.mul(evl[off + i], tmp[i]);
+            size[idx] += delta;
+        }
+    }
+
+    // Vector of the node at pos of level into r, right children are parent / left sibling
+    private int node(int level, long pos, long[] r) throws Exception {
+        if (level == 0 || (pos & 1) == 0) {
+            int idx = index(level, pos);
+            System.arraycopy(evl, idx * len, r, 0, len);
+            return size[idx];
+        }
+        int n   = node(level - 1, pos >> 1, r);
+        int idx = index(level, pos - 1);
+        long[] inv = new long[len];
+        PF.inv(Arrays.copyOfRange(evl, idx * len, (idx + 1) * len), inv, len);
+        for (int i = 0; i < len; i++) r[i] = PF.mul(r[i], inv[i]);
+        return n - size[idx];
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing that keys out of range leave the index unchanged");
+        Random r     = new Random(1);
+        EvalIndex ix = new EvalIndex();
+        for (int i = 0; i < 1000; i++) ix.add(Reconciler.randomKey(r));
+        long max     = Reconciler.getDatamax();
+        long[] root  = new long[ix.len];
+        long[] left  = new long[ix.len];
+        int n        = ix.get(0, max, root);
+        int m        = ix.get(0, max >> ix.depth, left);
+        for (long key : new long[] {max, PF.order() - 1, -1}) {
+            int thrown = 0;
+            try {ix.add(key);} catch (Exception e) {thrown++;}
+            try {ix.remove(key);} catch (Exception e) {thrown++;}
+            if (thrown != 2) throw new Exception("Key " + key + " not rejected");
+        }
+        long[] r2 = new long[ix.len];
+        long[] l2 = new long[ix.len];
+        if (ix.get(0, max, r2) != n || !Arrays.equals(root, r2) || ix.get(0, max >> ix.depth, l2) != m || !Arrays.equals(left, l2)) 
+            throw new Exception("Index changed by a key out of range");
+        System.out.println("Index unchanged, " + n + " keys");
+    }
+}
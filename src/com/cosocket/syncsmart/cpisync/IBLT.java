@@ -0,0 +1,129 @@
+package com.cosocket.syncsmart.cpisync;
+import java.util.Arrays;
+import java.util.Vector;
+import com.cosocket.syncsmart.cpisync.Strategy;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Set reconciliation using Invertible Bloom Lookup Tables as described in:
+ * D. Eppstein, M. T. Goodrich, F. Uyeda, G. Varghese, "What's the difference? Efficient set 
+ * reconciliation without prior context," ACM SIGCOMM 2011
+ * 
+ * Each key is added to one cell in each of three equal parts of the table. A cell holds the 
+ * count of keys added to it, the XOR of the keys, and the XOR of a check hash of the keys, and 
+ * is packed into two longs. The table of one peer is subtracted from that of the other, and the
+ * differences are peeled from the cells holding a single key. Decoding takes time linear in the 
+ * size of the difference, but the table needs about three longs per difference, and decoding 
+ * fails with some probability when the table is too small for the difference.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public class IBLT implements Strategy {
+    private static final int  hashes = 3;
+    private static final int  mincells = 4 * hashes;
+    private static final long mask = (1L<<48) - 1;   // check hash in the low 48 bits, count in the high 16
+
+    /**
+     * Return the length of the sync vector, in longs, of a table that decodes with high probability
+     * when the sets differ in up to the given number of keys
+     * @param bound an upper bound on the number of keys in exactly one of the two sets
+     * @return the length of the sync vector to use
+     */
+    public static final int length(int bound) {
+        long cells = mincells + 3L * bound / 2;  // 50% headroom over the difference
+        cells = (cells + hashes - 1) / hashes * hashes;
+        return (int) Math.min(2 * cells, Integer.MAX_VALUE - hashes * 2);
+    }
+
+    public long[] syncArray(long[] data, int len) {
+        int cells = len / 2 / hashes * hashes;
+        long[] t = new long[2 * cells];
+        for (long key : data) toggle(t, cells, key, 1);
+        return t;
+    }
+
+    public boolean reconcile(long[] eA, long[] eB, int mA, int mB, Vector<long[]> deltas) throws Exception {
+        if (eA.length != eB.length || eA.length < 2 * hashes) return false;
+        int cells = eA.length / 2;
+        long[] t = new long[eA.length];   // A - B
+        for (int c = 0; c < cells; c++) {
+            t[2*c]   = eA[2*c] ^ eB[2*c];
+            t[2*c+1] = (((eA[2*c+1] >> 48) - (eB[2*c+1] >> 48)) << 48) | ((eA[2*c+1] ^ eB[2*c+1]) & mask);
+        }
+        long[] push = new long[hashes];
+        long[] pull = new long[hashes];
+        int npush = 0, npull = 0;
+        boolean peeled = true;
+        while (peeled) {
+            peeled = false;
+            for (int c = 0; c < cells; c++) {
+                long count = t[2*c+1] >> 48;
+                long key   = t[2*c];
+                if ((count == 1 || count == -1) && (t[2*c+1] & mask) == check(key) && Reconciler.validKey(key)) {
+                    if (count == 1) {
+                        if (npush == push.length) push = Arrays.copyOf(push, 2 * npush);
+                        push[npush++] = key;
+                    } else {
+                        if (npull == pull.length) pull = Arrays.copyOf(pull, 2 * npull);
+                        pull[npull++] = key;
+                    }
+                    toggle(t, cells, key, (int) -count);
+                    peeled = true;
+                }
+            }
+        }
+        for (long x : t) if (x != 0) return false;  // undecoded differences remain
+        if (npush - npull != mA - mB) return false;
+        deltas.add(Arrays.copyOf(push, npush));
+        deltas.add(Arrays.copyOf(pull, npull));
+        return true;
+    }
+
+    // Adds (count 1) or removes (count -1) key in its cell of each part of the table
+    private static final void toggle(long[] t, int cells, long key, int count) {
+        int part = cells / hashes;
+        long chk = check(key);
+        for (int i = 0; i < hashes; i++) {
+            int c = i * part + (int) ((mix(key + i) >>> 1) % part);
+            t[2*c]   ^= key;
+            t[2*c+1]  = (((t[2*c+1] >> 48) + count) << 48) | ((t[2*c+1] ^ chk) & mask);
+        }
+    }
+
+    private static final long check(long key) {return mix(key ^ 0x5851f42d4c957f2dL) & mask;}
+
+    // Stafford variant 13 of the 64-bit finalizer of MurmurHash3
+    private static final long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
@@ -0,0 +1,55 @@
+package com.cosocket.syncsmart.cpisync;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Read access to the keys of a set to be reconciled, as needed by the ReconcileEngine
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public interface KeySet {
+    /**
+     * Returns a subset of the keys of the set that fall in a specified range, in ascending order
+     * @param from the minimum (inclusive) key in the subset
+     * @param to the maximum (exclusive) key in the subset
+     * @return the computed subset that are in [from,to)
+     */
+    public long[]  keySetArray(long from, long to);
+    /**
+     * Copies the CPI sync vector of the keys in [from,to) into evl if it is maintained as keys are 
+     * added and removed, so that it need not be recomputed from keySetArray(from, to)
+     * @param from the minimum (inclusive) key in the subset
+     * @param to the maximum (exclusive) key in the subset
+     * @param evl array of the CPI sync vector length to be populated
+     * @return the number of keys in [from,to), or -1 if the sync vector is not maintained for the range
+     *         or for vectors as long as evl
+     */
+    public int     syncArray(long from, long to, long[] evl);
+}
@@ -33,16 +33,33 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 /**
  * Operations on a Prime Finite Field in 64-bits
  * However (1L<<31) - 1 is used as the default order to avoid cost of peasant multiplies
+ * Being a Mersenne prime, reduction modulo the order is done by shifts and adds, not division
+ * The Mersenne prime (1L<<61) - 1 is selected by setting the system property 
+ * com.cosocket.syncsmart.field to 61, its 122-bit products are formed using Math.multiplyHigh;
+ * any other value than 31 or 61 fails the initialization of the class
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  */
 final class PF {
     // Order of the prime field, default largest 31-bit prime, long multiply sans overflow
     // Note: Largest 62-bit prime ((1L<<62) - 57) permits long adds sans overflow, but needs peasant multiplies
-    private static long p = (1L<<31) - 1; 
+    // Mersenne prime ((1L<<61) - 1) permits long adds sans overflow, and multiplies using the high word
+    private static final int  bits = fieldBits(System.getProperty("com.cosocket.syncsmart.field", "31"));
+    private static final long p = (1L<<bits) - 1; 
+
+    // Bits of the field selected by the system property, any value other than 31 or 61 is rejected
+    // at class initialization, as peers that differ in the field cannot reconcile
+    private static int fieldBits(String v) {
+        if (v.trim().equals("31")) return 31;
+        if (v.trim().equals("61")) return 61;
+        throw new IllegalArgumentException("com.cosocket.syncsmart.field must be 31 or 61, not " + v);
+    }
 
     // Order, size, or characteristic of the field
     public static final long order() {return p;}
+
+    // Number of bits in the order of the field, either 31 or 61
+    public static final int bits() {return bits;}
     
     // nth element of the field
     public static final long nth(long i) {return i % p;}
@@ -51,18 +68,17 @@ final class PF {
     public static final long random(Random r) {return (r.nextLong() & 0x7fffffffffffffffL) % p;}
 
     // Addition modulo p
-    public static final long add(long x, long y) {return (x + y) % p;}
+    public static final long add(long x, long y) {return reduce(x + y);}
     
     // Additive inverse modulo p
-    public static final long neg(long x) {return (p - x) % p;}
+    public static final long neg(long x) {return x == 0 ? 0 : p - x;}
     
     // Subtraction modulo p
-    public static final long sub(long x, long y) {return (x >= y ? x - y : (x - y + p) % p);}
+    public static final long sub(long x, long y) {return (x >= y ? x - y : x - y + p);}
     
-    // Multiplication modulo p using Russian Peasant Algorithm
+    // Multiplication modulo p, shift-and-add reduction for field operands, Russian Peasant otherwise
     public static final long mul(long x, long y) {       
-        long moflo = (1L<<31);  // multiply without overflow if operands < moflo
-        if (x >= 0 && x < moflo && y >= 0 && y < moflo) return (x * y) % p;
+        if (x >= 0 && x <= p && y >= 0 && y <= p) return bits == 31 ? reduce(x * y) : reduce(mul61(x, y));
         long res = 0;
         while (x != 0) {
             if ((x & 1) == 1) res = (res + y) % p;
@@ -71,7 +87,73 @@ final class PF {
         }
         return res;
     }
+
+    // Product of operands below 2^61 folded once modulo 2^61 - 1, result below 2^62
+    private static final long mul61(long x, long y) {
+        long hi = Math.multiplyHigh(x, y);
+        long lo = x * y;
+        return (lo & p) + ((lo >>> 61) | (hi << 3));
+    }
+
+    // Reduction of any non-negative long modulo the Mersenne prime p without division or branches
+    public static final long reduce(long x) {
+        x = (x & p) + (x >>> bits);
+        x = (x & p) + (x >>> bits) - p;  // -p <= x < 4
+        return x + ((x >> 63) & p);
+    }
+
+    // Partial reduction, congruent modulo p and below 2^(bits+1) for any non-negative long
+    public static final long fold(long x) {return (x & p) + (x >>> bits);}
+
+    // Unreduced multiply-accumulate for field operands, reduce() the accumulator once at the end
+    // For the 31-bit field each term adds less than 2^32, so at least 2^31 terms can be accumulated 
+    // For the 61-bit field the accumulator is folded on every term and never overflows 
+    public static final long mac(long acc, long x, long y) {
+        return bits == 31 ? acc + fold(x * y) : fold(acc) + mul61(x, y);
+    }
         
+    // Array kernels below take field elements only and are branch-free in the 31-bit field, so that 
+    // the JIT can map the loops onto SIMD lanes; the 61-bit field uses scalar high-word multiplies 
+
+    // e[i] *= (s[i] - k[j]) for i < n, from <= j < to; keys are taken in pairs to halve loads and stores 
+    public static final void prodsub(long[] e, long[] s, int n, long[] k, int from, int to) {
+        int j = from;
+        if (bits == 31) {
+            for (; j + 1 < to; j += 2) {
+                long k0 = p - k[j];
+                long k1 = p - k[j+1];
+                for (int i = 0; i < n; i++) {
+                    long t = reduce(e[i] * (s[i] + k0));  // e < 2^31, s + p - k < 2^32
+                    e[i]   = reduce(t * (s[i] + k1));
+                }
+            }
+            if (j < to) {
+                long k0 = p - k[j];
+                for (int i = 0; i < n; i++) e[i] = reduce(e[i] * (s[i] + k0));
+            }
+        } else {
+            for (; j < to; j++) {
+                long kj = k[j];
+                for (int i = 0; i < n; i++) e[i] = reduce(mul61(e[i], sub(s[i], kj)));
+            }
+        }
+    }
+
+    // y[i] += a * x[i] for i < n
+    public static final void axpy(long[] y, long[] x, long a, int n) {axpy(y, 0, x, a, n);}
+
+    // y[off + i] += a * x[i] for i < n
+    public static final void axpy(long[] y, int off, long[] x, long a, int n) {
+        if (bits == 31) {for (int i = 0; i < n; i++) y[off + i] = reduce(y[off + i] + fold(x[i] * a));}
+        else            {for (int i = 0; i < n; i++) y[off + i] = reduce(y[off + i] + mul61(x[i], a));}
+    }
+
+    // y[off + i] = a * x[i] for i < n
+    public static final void scale(long[] y, int off, long[] x, long a, int n) {
+        if (bits == 31) {for (int i = 0; i < n; i++) y[off + i] = reduce(x[i] * a);}
+        else            {for (int i = 0; i < n; i++) y[off + i] = reduce(mul61(x[i], a));}
+    }
+    
     // Multiplicative inverse using Extended Euclidean algorithm
     public static final long inv(long x) throws Exception {
         if (x == 0) throw new Exception ("Divide by zero");
@@ -90,6 +172,25 @@ final class PF {
         return (a + p) % p;
     }
     
+    // Multiplicative inverses of the first n elements of x into r (which may be x itself)
+    // Montgomery's trick needs a single Extended Euclidean inversion and 3(n-1) multiplies
+    public static final void inv(long[] x, long[] r, int n) throws Exception {
+        if (n <= 0) return;
+        long[] pre = new long[n];  // pre[i] is the product of x[0] ... x[i-1]
+        long acc = 1;
+        for (int i = 0; i < n; i++) {
+            if (x[i] == 0) throw new Exception ("Divide by zero");
+            pre[i] = acc;
+            acc = mul(acc, x[i]);
+        }
+        acc = inv(acc);  // inverse of the product of x[i] ... x[n-1] going downwards
+        for (int i = n - 1; i >= 0; i--) {
+            long xi = x[i];
+            r[i] = mul(acc, pre[i]);
+            acc = mul(acc, xi);
+        }
+    }
+    
     // Division modulo p using multiplicative inverse
     public static final long div(long x, long y) throws Exception {return mul(x, inv(y));}
     
@@ -106,11 +207,10 @@ final class PF {
     }
 
     // Hash into finite field, further modulo m
-    public static final long hash(byte[] b, long m) {
-        long h  = 1125899906842597L; // prime
-        for (int i = 0; i < b.length; i++) h = 31*h + b[i];
-        return (h & 0x7fffffffffffffffL) % (m > 0 && m < p ? m : p);
-    }
+    public static final long hash(byte[] b, long m) {return hash(XXHash64.hash(b, 0, b.length, 0), m);}
+
+    // Map a 64 bit hash into finite field, further modulo m
+    public static final long hash(long h, long m) {return (h >>> 1) % (m > 0 && m < p ? m : p);}
     
     // Check whether x is a power of two
     public static final boolean ispow2 (long x) {return (x != 0) && ((x & (x-1)) == 0);}
@@ -42,6 +42,10 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * An asynchronous protocol may accomplish a distributed traversal using:
  *     if (!Partition.isDone(x)) Partition.next(<myCondition>(x), x, x);   
  * 
+ * A protocol that probes several partitions per round trip may instead split a partition that
+ * fails into k children at once with children(x, k), and continue past the last partition of a 
+ * round trip with next(true, x, n).
+ * 
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  */
@@ -90,6 +94,36 @@ public class Partition {
         }
     }
 
+    /**
+     * Steps to the partition of the same width that follows x, e.g., across a level of the tree
+     * @param x the partition
+     * @param n set to the next partition, or done if x is the last of its width; may be x
+     */
+    public static final void after(long[] x, long[] n) {
+        long w = x[end] - x[beg];
+        copy(x,n);
+        if(x[end] + w > x[max]) done(n); else {n[beg] = x[end]; n[end] = x[end] + w;}
+    }
+
+    /**
+     * Splits a partition into k equal children, or into leaves if it is narrower than k
+     * @param x the partition
+     * @param k the number of children, a power of two
+     * @return the children in ascending order
+     */
+    public static final long[][] children(long[] x, int k) {
+        long w = x[end] - x[beg];
+        int  n = w < k ? (int) w : k;
+        long[][] c = new long[n][];
+        for (int i = 0; i < n; i++) {
+            c[i] = new long[4];
+            copy(x, c[i]);
+            c[i][beg] = x[beg] + i * (w / n);
+            c[i][end] = c[i][beg] + w / n;
+        }
+        return c;
+    }
+
     public static final long[] root(long mn, long mx) throws Exception {
         long[] r = new long[]{mn,mx,mn,mx};
         if(!isValid(r)) throw new Exception("Unacceptable interval");
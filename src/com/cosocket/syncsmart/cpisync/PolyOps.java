@@ -0,0 +1,210 @@
+package com.cosocket.syncsmart.cpisync;
+import com.cosocket.syncsmart.cpisync.PF;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * In-place polynomial arithmetic over the field PF on caller provided buffers. A polynomial is 
+ * a coefficient array (c[0] + c[1]*x + c[2]*x^2 ...) with an explicit length, and the methods 
+ * return the length of the result with the leading zero coefficients removed. The buffers are 
+ * reused across the steps of modular exponentiation and gcd, so that those allocate nothing
+ * per step; Polynomial is the immutable front end used by the rest of the package. Long 
+ * products use Karatsuba multiplication, and modular exponentiation by a long modulus reduces
+ * by multiplying with the inverse of the reversed modulus, computed once by Newton iteration.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+final class PolyOps {
+    private static final int karatsuba = 48;   // multiply schoolbook below this many coefficients
+    private static final int newton    = 128;  // reduce schoolbook below this degree of the modulus
+
+    private PolyOps() {}
+
+    // Length of a[0..n) without leading zero coefficients
+    static int norm(long[] a, int n) {
+        while (n > 0 && a[n-1] == 0) n--;
+        return n;
+    }
+
+    // a -= b in place, a must hold max(na, nb) coefficients
+    static int sub(long[] a, int na, long[] b, int nb) {
+        for (int i = na; i < nb; i++) a[i] = 0;
+        for (int i = 0; i < nb; i++) a[i] = PF.sub(a[i], b[i]);
+        return norm(a, na > nb ? na : nb);
+    }
+
+    // r = a * b, r must hold na + nb - 1 coefficients and must not be a or b
+    static int mul(long[] a, int na, long[] b, int nb, long[] r) {return mul(a, na, b, nb, r, null);}
+
+    // r = a * b as above, s is scratch for Karatsuba multiplication or null to allocate it if needed
+    static int mul(long[] a, int na, long[] b, int nb, long[] r, long[] s) {
+        if (na == 0 || nb == 0) return 0;
+        if (na < karatsuba || nb < karatsuba) {
+            smul(a, 0, na, b, 0, nb, r, 0);
+        } else {
+            if (s == null) s = scratch(na > nb ? na : nb);
+            kmul(a, 0, na, b, 0, nb, r, 0, s, 0);
+        }
+        return norm(r, na + nb - 1);
+    }
+
+    // Scratch for the Karatsuba multiplication of operands of up to n coefficients
+    static long[] scratch(int n) {return new long[4 * n + 64];}
+
+    // r[ro..ro + na + nb - 1) = a[ao..ao + na) * b[bo..bo + nb), schoolbook
+    private static void smul(long[] a, int ao, int na, long[] b, int bo, int nb, long[] r, int ro) {
+        int nr = na + nb - 1;
+        for (int i = 0; i < nr; i++) r[ro + i] = 0;
+        for (int i = 0; i < na; i++) {  // accumulate unreduced, reduce each term once
+            long ai = a[ao + i];
+            for (int j = 0; j < nb; j++) r[ro + i + j] = PF.mac(r[ro + i + j], ai, b[bo + j]);
+        }
+        for (int i = 0; i < nr; i++) r[ro + i] = PF.reduce(r[ro + i]);
+    }
+
+    // r[ro..ro + na + nb - 1) = a[ao..ao + na) * b[bo..bo + nb), Karatsuba with scratch from s[so]
+    private static void kmul(long[] a, int ao, int na, long[] b, int bo, int nb, long[] r, int ro, long[] s, int so) {
+        int h = ((na > nb ? na : nb) + 1) / 2;
+        if (na < karatsuba || nb < karatsuba || na <= h || nb <= h) {smul(a, ao, na, b, bo, nb, r, ro); return;}
+        int na1 = na - h;
+        int nb1 = nb - h;
+        kmul(a, ao, h, b, bo, h, r, ro, s, so);                     // a0 b0 in r[0..2h - 1)
+        r[ro + 2*h - 1] = 0;
+        kmul(a, ao + h, na1, b, bo + h, nb1, r, ro + 2*h, s, so);   // a1 b1 in r[2h..na + nb - 1)
+        for (int i = 0; i < h; i++) {
+            s[so + i]     = i < na1 ? PF.add(a[ao + i], a[ao + h + i]) : a[ao + i];
+            s[so + h + i] = i < nb1 ? PF.add(b[bo + i], b[bo + h + i]) : b[bo + i];
+        }
+        int z = so + 2*h;
+        kmul(s, so, h, s, so + h, h, s, z, s, z + 2*h - 1);          // (a0 + a1)(b0 + b1)
+        int n2 = na1 + nb1 - 1;
+        for (int i = 0; i < 2*h - 1; i++) {                          // minus a0 b0 and a1 b1
+            s[z + i] = PF.sub(s[z + i], r[ro + i]);
+            if (i < n2) s[z + i] = PF.sub(s[z + i], r[ro + 2*h + i]);
+        }
+        int nz = na + nb - 1 - h < 2*h - 1 ? na + nb - 1 - h : 2*h - 1;
+        for (int i = 0; i < nz; i++) r[ro + h + i] = PF.add(r[ro + h + i], s[z + i]);
+    }
+
+    // a = a mod m in place by schoolbook division, minv is the inverse of the head of m;
+    // the quotient is stored in q unless it is null, q must hold na - nm + 1 coefficients
+    static int rem(long[] a, int na, long[] m, int nm, long minv, long[] q) {
+        int dm = nm - 1;
+        for (int i = na - 1; i >= dm; i--) {
+            long f = a[i] == 0 ? 0 : PF.mul(a[i], minv);
+            if (q != null) q[i - dm] = f;
+            if (f == 0) continue;
+            PF.axpy(a, i - dm, m, PF.neg(f), dm);
+            a[i] = 0;
+        }
+        return norm(a, na < dm ? na : dm);
+    }
+
+    // g = 1 / rev(m) mod x^n by Newton iteration g = g (2 - rev(m) g), doubling the precision,
+    // where rev(m) = x^(nm-1) m(1/x) has the head of m as its constant term
+    static long[] revinv(long[] m, int nm, int n) throws Exception {
+        long[] f = new long[nm];
+        for (int i = 0; i < nm; i++) f[i] = m[nm - 1 - i];
+        long[] g = new long[n];
+        long[] t = new long[2 * n + nm];
+        long[] u = new long[n];
+        long[] s = scratch(n > nm ? n : nm);
+        g[0] = PF.inv(f[0]);
+        for (int len = 1; len < n; ) {
+            int nl = 2 * len < n ? 2 * len : n;
+            int nf = nm < nl ? nm : nl;
+            int ne = nl - len;
+            mul(f, nf, g, len, t, s);                     // f g = 1 + x^len e mod x^nl
+            for (int i = 0; i < ne; i++) u[i] = i < nf - 1 ? t[len + i] : 0;
+            mul(g, ne < len ? ne : len, u, ne, t, s);     // g e mod x^ne
+            for (int i = 0; i < ne; i++) g[len + i] = PF.neg(t[i]);
+            len = nl;
+        }
+        return g;
+    }
+
+    // a = a mod m in place for na <= 2 (nm - 1), by the quotient rev(q) = rev(a) ivr mod x^(na-nm+1), 
+    // ivr = revinv(m, nm, nm - 1); u and v are scratch for 2 nm coefficients and s for mul
+    static int rem(long[] a, int na, long[] m, int nm, long[] ivr, long[] u, long[] v, long[] s) {
+        int dm = nm - 1;
+        if (na <= dm) return norm(a, na);
+        int k = na - dm;
+        for (int i = 0; i < k; i++) u[i] = a[na - 1 - i];
+        mul(u, k, ivr, k, v, s);
+        for (int i = 0; i < k; i++) u[i] = v[k - 1 - i];
+        mul(u, k, m, dm, v, s);                           // q m mod x^dm, the head of m cancels above
+        for (int i = 0; i < dm; i++) a[i] = PF.sub(a[i], v[i]);
+        for (int i = dm; i < na; i++) a[i] = 0;
+        return norm(a, dm);
+    }
+
+    // r = a^e mod m, left to right so that each multiply is by a, which is cheap when a is short; 
+    // r must hold max(1, nm - 1) coefficients and must not be a
+    static int powmod(long[] a, int na, long e, long[] m, int nm, long[] r) throws Exception {
+        long minv  = PF.inv(m[nm-1]);
+        long[] ivr = nm - 1 >= newton ? revinv(m, nm, nm - 1) : null;  // reused for every step
+        long[] t   = new long[2 * nm + na];   // scratch for all the steps
+        long[] u   = ivr == null ? null : new long[2 * nm];
+        long[] v   = ivr == null ? null : new long[2 * nm];
+        long[] s   = scratch(nm);
+        long[] b   = new long[na];
+        System.arraycopy(a, 0, b, 0, na);
+        int nb     = rem(b, na, m, nm, minv, null);
+        r[0]       = 1;
+        int nr     = rem(r, 1, m, nm, minv, null);
+        for (int i = 63 - Long.numberOfLeadingZeros(e); i >= 0; i--) {
+            nr = mulmod(r, nr, r, nr, m, nm, minv, ivr, t, u, v, s, r);
+            if (((e >>> i) & 1L) != 0) nr = mulmod(r, nr, b, nb, m, nm, minv, ivr, t, u, v, s, r);
+        }
+        return nr;
+    }
+
+    // r = a * b mod m for a and b reduced mod m, by ivr if not null; t is scratch for 2 nm coefficients
+    private static int mulmod(long[] a, int na, long[] b, int nb, long[] m, int nm, long minv, long[] ivr, 
+                              long[] t, long[] u, long[] v, long[] s, long[] r) {
+        int n = mul(a, na, b, nb, t, s);
+        n = ivr == null ? rem(t, n, m, nm, minv, null) : rem(t, n, m, nm, ivr, u, v, s);
+        System.arraycopy(t, 0, r, 0, n);
+        return n;
+    }
+
+    // gcd of a and b in place, the monic result is left in a; both a and b are overwritten
+    static int gcd(long[] a, int na, long[] b, int nb) throws Exception {
+        long[] x = a, y = b;
+        int nx = norm(a, na), ny = norm(b, nb);
+        while (ny > 0) {   // (x, y) = (y, x mod y)
+            nx = rem(x, nx, y, ny, PF.inv(y[ny-1]), null);
+            long[] t = x; x = y; y = t;
+            int n = nx; nx = ny; ny = n;
+        }
+        if (nx > 0) PF.scale(a, 0, x, PF.inv(x[nx-1]), nx);
+        return nx;
+    }
+}
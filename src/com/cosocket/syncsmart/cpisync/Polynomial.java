@@ -1,7 +1,11 @@
 package com.cosocket.syncsmart.cpisync;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 import com.cosocket.syncsmart.cpisync.PF;
+import com.cosocket.syncsmart.cpisync.PolyOps;
 /*
 Copyright (c) 2013, Cosocket LLC
 All rights reserved.
@@ -38,12 +42,14 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * We are grateful to the original author Keith Randall who made the code available
  * in the public domain. The code was refactored for the data types used in this
  * package, and an argument that terminates the equal degree factorization after a given
- * degree was introduced. A common use in this package is to factorize into monomials.
+ * degree was introduced. A common use in this package is to find the roots of polynomials
+ * that split into distinct monomials, which has a dedicated path (see roots()).
  * @author Modifications by Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  */
 final class Polynomial {
     private final long[] coeff;  // (c[0] + c[1]*x + c[2]*x^2 ...), ending non-zero
+    private static final int parsplit = 32;  // split polynomials of at least this degree in parallel
         
     public Polynomial(long[] coeff) {    
         int len = 0;
@@ -69,6 +75,13 @@ final class Polynomial {
     public long head() {return coeff[coeff.length - 1];}
     public long tail() {return coeff[0];}
 
+    // value at x by Horner's rule
+    public long eval(long x) {
+        long v = 0;
+        for (int i = coeff.length - 1; i >= 0; i--) v = PF.add(PF.mul(v, x), coeff[i]);
+        return v;
+    }
+
     public Polynomial add(Polynomial x) {
         int len = coeff.length > x.coeff.length ? coeff.length : x.coeff.length;
         long[] c = new long[len];
@@ -86,7 +99,11 @@ final class Polynomial {
         return new Polynomial(c);
     }
   
-    public Polynomial sub(Polynomial x) {return add(x.mul(PF.neg(1L)));}
+    public Polynomial sub(Polynomial x) {
+        long[] c = Arrays.copyOf(coeff, coeff.length > x.coeff.length ? coeff.length : x.coeff.length);
+        PolyOps.sub(c, coeff.length, x.coeff, x.coeff.length);
+        return new Polynomial(c);
+    }
   
     public Polynomial mul(long x) {
         long[] c = new long[coeff.length];
@@ -98,34 +115,19 @@ final class Polynomial {
         if (coeff.length == 0) return this;
         if (x.coeff.length == 0) return x;
         long[] c = new long[coeff.length + x.coeff.length - 1];
-        for (int i = 0; i < c.length; i++) c[i] = 0L;
-
-        for (int i = 0; i < coeff.length; i++) {
-            for (int j = 0; j < x.coeff.length; j++)
-                c[i + j] = PF.add(c[i + j], PF.mul(coeff[i], x.coeff[j]));
-        }
+        PolyOps.mul(coeff, coeff.length, x.coeff, x.coeff.length, c);
         return new Polynomial(c);
     }
   
     // returns [this/x, this%x]
     public Polynomial[] div(Polynomial divisor) throws Exception {
-        Polynomial dividend = zero();
-        Polynomial remainder = this;
-    
-        while (remainder.degree() >= divisor.degree()) {
-            int k = remainder.degree() - divisor.degree();
-      
-            // dividend += m * x^k
-            // remainder -= m * x^k * divisor
-            // choose m such that high term of remainder is cancelled
-            long m = PF.div(remainder.head(), divisor.head());
-      
-            Polynomial z = x().pow(k);
-      
-            dividend = dividend.add(z.mul(m));
-            remainder = remainder.sub(z.mul(m).mul(divisor));
-        }
-        return new Polynomial[]{dividend, remainder};
+        int n = divisor.coeff.length;
+        long hinv = PF.inv(divisor.head());  // invert once, not for every term of the dividend
+        if (coeff.length < n) return new Polynomial[]{zero(), this};
+        long[] q = new long[coeff.length - n + 1];
+        long[] r = coeff.clone();
+        PolyOps.rem(r, r.length, divisor.coeff, n, hinv, q);
+        return new Polynomial[]{new Polynomial(q), new Polynomial(r)};
     }
 
     // compute this^e
@@ -142,14 +144,8 @@ final class Polynomial {
 
     // compute this^e mod p
     public Polynomial modPow(long e, Polynomial p) throws Exception {
-        Polynomial x = this;
-        Polynomial r = one();
-        while (e > 0) {
-            if ((e & 1L) != 0) r = r.mul(x).div(p)[1]; // r *= x mod p
-            e >>= 1;
-            x = x.mul(x).div(p)[1];  // x = x^2 mod p
-        }
-        return r;
+        long[] r = new long[p.coeff.length];
+        return new Polynomial(Arrays.copyOf(r, PolyOps.powmod(coeff, coeff.length, e, p.coeff, p.coeff.length, r)));
     }
   
     public Polynomial monic() throws Exception {
@@ -159,19 +155,9 @@ final class Polynomial {
     }
   
     public Polynomial gcd(Polynomial x) throws Exception {
-        Polynomial a = monic();
-        Polynomial b = x.monic();
-    
-        while (true) {
-            if (a.degree() < b.degree()) {
-                Polynomial t = a;
-                a = b;
-                b = t;
-            }
-            if (b.degree() < 0) return a;   // gcd(a,0) == a
-            Polynomial z = x().pow(a.degree() - b.degree());
-            a = a.sub(b.mul(z)).monic();    // cancel the highest degree of a
-        }
+        long[] a = Arrays.copyOf(coeff, coeff.length > x.coeff.length ? coeff.length : x.coeff.length);
+        long[] b = x.coeff.clone();
+        return new Polynomial(Arrays.copyOf(a, PolyOps.gcd(a, coeff.length, b, b.length)));
     }
   
     // Compute symbolic differential of the polynomial
@@ -183,21 +169,63 @@ final class Polynomial {
         return new Polynomial(c);
     }
 
+    // Roots of a polynomial that splits into distinct monomials, none if it does not split
     public long[] roots() throws Exception {
-        ArrayList<Polynomial> lf = this.factor(1); // factorize into monomials
-        // check factors are all monomials, eliminate any constants
-        int constants = 0;
-        for (Polynomial f : lf) {
-            int x = f.degree();
-            if (x > 1) return new long[0];
-            if (x < 1) constants++;
+        if (degree() < 1) return new long[0];
+        Polynomial f = monic();
+        Polynomial u = null;
+        if (f.degree() > 1) {
+            // f splits into distinct monomials iff it divides x^q - x, i.e., gcd(f, x^q - x) == f;
+            // x^q = x * u^2 for u = x^((q-1)/2), and u - 1 also makes the first split below
+            u = x().modPow((PF.order() - 1) / 2, f);
+            if (u.mul(u).mul(x()).div(f)[1].sub(x()).degree() >= 0) return new long[0];
         }
-        long[] r = new long[lf.size() - constants];
-        int i = 0;
-        for (Polynomial f: lf)
-            if (f.degree() == 1) r[i++] = PF.div(PF.neg(f.tail()), f.head());
+        long[] r = new long[f.degree()];
+        Split s = new Split(f, r, 0, u);
+        if (f.degree() < parsplit) s.split(); else Reconciler.getPool().invoke(s);
         return r;
     }
+
+    // Equal degree (Cantor-Zassenhaus) splitting of a monic product of distinct monomials
+    private static final class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Polynomial f;
+        private final long[]     r;     // roots of f are stored in r[off], ..., r[off + f.degree() - 1]
+        private final int        off;
+        private final Polynomial w;     // (x + a)^((q-1)/2) mod f for some a, or null
+
+        Split(Polynomial f, long[] r, int off, Polynomial w) {this.f = f; this.r = r; this.off = off; this.w = w;}
+
+        protected void compute() {
+            try {
+                split();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void split() throws Exception {
+            if (f.degree() < 1) return;
+            if (f.degree() == 1) {r[off] = PF.neg(f.tail()); return;}
+            long e = (PF.order() - 1) / 2;
+            Polynomial h = w == null ? one() : f.gcd(w.sub(one()));
+            while (h.degree() < 1 || h.degree() >= f.degree()) {  
+                // (x + a)^((q-1)/2) - 1 vanishes at about half of the roots for random a
+                Polynomial t = new Polynomial(new long[]{PF.random(ThreadLocalRandom.current()), 1L});
+                h = f.gcd(t.modPow(e, f).sub(one()));
+            }
+            Split left  = new Split(h, r, off, null);
+            Split right = new Split(f.div(h)[0], r, off + h.degree(), null);
+            if (f.degree() < parsplit) {
+                left.split();
+                right.split();
+            } else {
+                left.fork();
+                right.compute();
+                left.join();
+            }
+        }
+    }
        
     public ArrayList<Polynomial> factor(int maxdegree) throws Exception {
         // zero
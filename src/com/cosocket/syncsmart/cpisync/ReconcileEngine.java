@@ -0,0 +1,169 @@
+package com.cosocket.syncsmart.cpisync;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import com.cosocket.syncsmart.cpisync.Partition;
+import com.cosocket.syncsmart.cpisync.Reconciler;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Reconciles two sets held locally, e.g., replicas of the same set in one JVM, without any 
+ * protocol. Partitions are traversed breadth-first: all partitions of a level are reconciled 
+ * in parallel on a ForkJoinPool, and both children of every partition that fails to reconcile 
+ * make up the next level. The computed differences are reported to a Listener, which is left 
+ * to move the items, so the sets may be modified while they are being reconciled.
+ *
+ *     ReconcileEngine e = new ReconcileEngine();
+ *     e.reconcile(storeA, storeB, new ReconcileEngine.Listener() {...});
+ *
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public class ReconcileEngine {
+    private final ForkJoinPool pool;
+
+    /**
+     * Receives the set differences computed for each partition. It is called concurrently from 
+     * the threads of the pool and must be thread-safe.
+     */
+    public interface Listener {
+        /**
+         * Reports the differences for the partition [begin,end), which is reconciled once  
+         * @param begin the beginning (inclusive) of the partition
+         * @param end the end (exclusive) of the partition
+         * @param push keys in the first set (A) but not in the other (B)
+         * @param pull keys in the other set (B) but not in the first (A)
+         * @throws Exception to abort the reconciliation
+         */
+        public void deltas(long begin, long end, long[] push, long[] pull) throws Exception;
+    }
+
+    /**
+     * Constructs an engine that runs on the common ForkJoinPool
+     */
+    public ReconcileEngine() {this(ForkJoinPool.commonPool());}
+
+    /**
+     * Constructs an engine that runs on the given pool
+     * @param pool the ForkJoinPool on which partitions are reconciled
+     */
+    public ReconcileEngine(ForkJoinPool pool) {this.pool = pool;}
+
+    /**
+     * Reconciles the keys of two sets over [0, Reconciler.getDatamax())
+     * @param a the first set (A)
+     * @param b the other set (B)
+     * @param l the Listener to which differences are reported
+     * @return the number of partitions reconciled, i.e., that of messages a protocol would need
+     * @throws Exception if reconciliation or the Listener throws an exception
+     */
+    public int reconcile(KeySet a, KeySet b, Listener l) throws Exception {
+        List<long[]> level = new ArrayList<long[]>();
+        level.add(Partition.root(0, Reconciler.getDatamax()));
+        int n = 0;
+        try {
+            while (!level.isEmpty()) {
+                n += level.size();
+                level = pool.invoke(new Level(a, b, l, level, 0, level.size()));
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+        return n;
+    }
+
+    // Reconciles the partitions of a level in [from, to), returns the children of those that failed 
+    private static final class Level extends RecursiveTask<List<long[]>> {
+        private static final long serialVersionUID = 1L;
+        private final KeySet       a;
+        private final KeySet       b;
+        private final Listener     l;
+        private final List<long[]> level;
+        private final int          from;
+        private final int          to;
+
+        Level(KeySet a, KeySet b, Listener l, List<long[]> level, int from, int to) {
+            this.a = a; this.b = b; this.l = l; this.level = level; this.from = from; this.to = to;
+        }
+
+        protected List<long[]> compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                Level left = new Level(a, b, l, level, from, mid);
+                left.fork();
+                List<long[]> r = new Level(a, b, l, level, mid, to).compute();
+                List<long[]> lft = left.join();
+                lft.addAll(r);
+                return lft;
+            }
+            List<long[]> next = new ArrayList<long[]>();
+            try {
+                long[] x = level.get(from);
+                if (!reconcile(a, b, l, Partition.begin(x), Partition.end(x)) && !Partition.isLeaf(x)) {
+                    long begin = Partition.begin(x);
+                    long end   = Partition.end(x);
+                    long mid   = (begin + end) / 2;
+                    next.add(Partition.partition(begin, mid, 0, Reconciler.getDatamax()));
+                    next.add(Partition.partition(mid, end, 0, Reconciler.getDatamax()));
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return next;
+        }
+    }
+
+    private static final boolean reconcile(KeySet a, KeySet b, Listener l, long begin, long end) throws Exception {
+        long[] eA = new long[Reconciler.syncLength()];
+        long[] eB = new long[Reconciler.syncLength()];
+        int mA    = a.syncArray(begin, end, eA);
+        int mB    = b.syncArray(begin, end, eB);
+        boolean sv = mA < 0 || mB < 0 || Reconciler.isSV(mB, begin, end);
+        if (sv) {  // not maintained, or small enough to compare the keys 
+            long[] dA = a.keySetArray(begin, end);
+            long[] dB = b.keySetArray(begin, end);
+            mA = dA.length;
+            mB = dB.length;
+            sv = Reconciler.isSV(mB, begin, end);
+            eA = Reconciler.syncArray(sv, dA);
+            eB = Reconciler.syncArray(sv, dB);
+        }
+        Vector<long[]> deltas = new Vector<long[]>();
+        boolean success = sv ? Reconciler.reconcile(sv, eA, eB, mA, mB, deltas) 
+                             : Reconciler.reconcile(a, begin, end, eA, eB, mA, mB, deltas);
+        if (!success) return false;
+        l.deltas(begin, end, deltas.get(0), deltas.get(1));
+        return true;
+    }
+}
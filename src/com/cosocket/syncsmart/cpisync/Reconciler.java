@@ -1,12 +1,19 @@
 package com.cosocket.syncsmart.cpisync;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Set;
 import java.util.Arrays;
 import java.util.Vector;
 import java.util.Random;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import com.cosocket.syncsmart.cpisync.PF;
 import com.cosocket.syncsmart.cpisync.Solver;
 import com.cosocket.syncsmart.cpisync.Polynomial;
+import com.cosocket.syncsmart.cpisync.KeySet;
+import com.cosocket.syncsmart.cpisync.Strategy;
 /*
 Copyright (c) 2013, Cosocket LLC
 All rights reserved.
@@ -48,11 +55,37 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  *
  */
 public class Reconciler {
-    private static final int    svthresh  = 128;   // summary vector threshold, vector must fit in a datagram
-    private static final int    maxdiff   = 64;    // adjust for best performance, do not make user-settable
-    private static final int    redundant = 4;
-    private static final long   datamax   = PF.floorpow2(PF.order() - maxdiff - redundant);
+    static final int            svmax     = 4096;  // largest difference reconciled from summary vectors
+    static final int            maxcap    = 1024;  // largest difference bound a Tuning may choose
+    static final int            redundant = 4;
+    static final int            mindiff   = 8;     // smallest difference bound when a short vector is requested
+    private static final long   datamax   = PF.floorpow2(PF.order() - maxcap - redundant);
     private static final long[] smp       = sampinit();   
+    private static final int    parthresh = 1<<14; // keys per task when evaluating large partitions in parallel
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    /**
+     * Summary vector reconciliation, the sync vector is the keys of the partition, see isSV(int, long, long)
+     */
+    public static final Strategy SV = new Strategy() {
+        public long[]  syncArray(long[] data, int len) {return data;}
+        public boolean reconcile(long[] eA, long[] eB, int mA, int mB, Vector<long[]> deltas) {
+            return svreconcile(eA, eB, deltas);
+        }
+    };
+
+    /**
+     * CPIsync reconciliation, the sync vector is the leading evaluations of the characteristic 
+     * polynomial at pre-determined sample points, see syncLength(int)
+     */
+    public static final Strategy CPI = new Strategy() {
+        public long[]  syncArray(long[] data, int len) {
+            return evaluate(data, len < 1 ? 1 : (len > smp.length ? smp.length : len));
+        }
+        public boolean reconcile(long[] eA, long[] eB, int mA, int mB, Vector<long[]> deltas) throws Exception {
+            return cpreconcile(eA, eB, mA, mB, null, 0, 0, deltas);
+        }
+    };
     
     /**
      * Return the maximum value of a key for a data item in the set to be reconciled.
@@ -60,16 +93,51 @@ public class Reconciler {
      * @return the maximum value of a key for a data item in the set to be reconciled
      */
     public static final long    getDatamax()        {return datamax;}
+    /**
+     * Return the number of bits in the order of the finite field used by the reconciliation 
+     * algorithm, 31 by default or 61 if the system property com.cosocket.syncsmart.field is 61.
+     * All peers reconciling a set must use the same field.
+     * @return the number of bits in the order of the field
+     */
+    public static final int     getFieldBits()      {return PF.bits();}
+    /**
+     * Return the largest set difference that a CPI sync vector of a partition can reconcile
+     * with the default tuning, see Tuning.DEFAULT.
+     * @return the largest set difference for CPIsync
+     */
+    public static final int     getMaxdiff()        {return Tuning.DEFAULT.getMaxdiff();}
     /**
      * Computes the hash of the input byte array in the finite field of prime order
-     * used by the CPI sync reconciliation algorithm.  The hashing uses basically the
-     * the same algorithm used in java.lang.String.hashCode() but extends it
-     * to 64 bits, takes the absolute value, computes modulo the order of the field 
-     * and further modulo getDatamax() 
-     * @param b the byte array for which the hash is to be como
+     * used by the CPI sync reconciliation algorithm.  The 64 bit XXHash64 of the bytes
+     * is taken modulo the order of the field and further modulo getDatamax(), which
+     * makes it a valid key.
+     * @param b the byte array for which the hash is to be computed
      * @return the computed hash
      */
     public static final long    hash(byte[] b)      {return PF.hash(b, datamax);}
+    /**
+     * Computes the hash of the bytes of a heap or direct ByteBuffer between its position and
+     * limit, which are left unchanged, as a valid key, see hash(byte[])
+     * @param b the buffer for which the hash is to be computed
+     * @return the computed hash
+     */
+    public static final long    hash(ByteBuffer b)  {return PF.hash(XXHash64.hash(b, 0), datamax);}
+    /**
+     * Computes the hash of the bytes read from a stream until its end as a valid key, see 
+     * hash(byte[]); large items are hashed without holding them in memory
+     * @param in the stream, which is not closed
+     * @return the computed hash
+     * @throws IOException if reading from the stream fails
+     */
+    public static final long    hash(InputStream in) throws IOException {return PF.hash(new XXHash64().update(in).digest(), datamax);}
+    /**
+     * Computes the hash of the bytes read from a channel, e.g., a FileChannel from its position, 
+     * until its end as a valid key, see hash(byte[])
+     * @param ch the channel, which is not closed
+     * @return the computed hash
+     * @throws IOException if reading from the channel fails
+     */
+    public static final long    hash(ReadableByteChannel ch) throws IOException {return PF.hash(new XXHash64().update(ch).digest(), datamax);}
     /**
      * Checks whether the provided input is a valid key, i.e., it is a member of the
      * finite field of prime order used by the CPI sync algorithm and is smaller than
@@ -84,9 +152,36 @@ public class Reconciler {
      * @return the generated random key
      */
     public static final long    randomKey(Random r) {return PF.random(r) % datamax;}
+    /**
+     * Set the ForkJoinPool on which sync vectors are computed for partitions with more keys than
+     * an internal threshold; smaller partitions are evaluated on the calling thread. 
+     * The common pool is used by default.
+     * @param p the ForkJoinPool to use for evaluating large partitions
+     */
+    public static final void    setPool(ForkJoinPool p) {pool = p;}
+    static final ForkJoinPool   getPool()           {return pool;}
+    /**
+     * Return the length of the CPI sync vectors with the default tuning, i.e., the number of 
+     * sample points at which the characteristic polynomial is evaluated
+     * @return the length of the CPI sync vectors
+     */
+    public static final int     syncLength()        {return Tuning.DEFAULT.syncLength();}
+    /**
+     * Return the length of CPI sync vectors that suffice to reconcile sets differing in up to
+     * the given number of keys with the default tuning, see Tuning.syncLength(int)
+     * @param bound an upper bound on the number of keys in exactly one of the two sets
+     * @return the length of the CPI sync vectors to use
+     */
+    public static final int     syncLength(int bound) {return Tuning.DEFAULT.syncLength(bound);}
+    /**
+     * Return the depth of the first partition with the default tuning, see Tuning.startDepth(int)
+     * @param estimate the estimated number of keys in exactly one of the two sets
+     * @return the depth of the first partition, 0 for the complete range
+     */
+    public static final int     startDepth(int estimate) {return Tuning.DEFAULT.startDepth(estimate);}
  
     private static final long[] sampinit() { 
-        long[] samp = new long[maxdiff + redundant];
+        long[] samp = new long[maxcap + redundant];
         for(int i = 0; i < samp.length; i++) samp[i] = PF.nth(datamax + i);
         return samp;
     }
@@ -103,32 +198,63 @@ public class Reconciler {
         return r;
     }
     
-    private static final Set<Long> toSet(long[] l) {
-        Set<Long> r = new TreeSet<Long>();
-        for(int i = 0; i < l.length; i++) r.add(l[i]);
-        return r;
+    private static final long[] sorted(long[] l) {
+        for (int i = 1; i < l.length; i++) 
+            if (l[i-1] >= l[i]) {long[] r = l.clone(); Arrays.sort(r); return r;}
+        return l;
     }
 
-    private static final long[] evaluate(long[] data) {
-        long[] evl = new long[smp.length];
-        for (int i = 0; i < smp.length; i++) {
-            evl[i] = 1L;
-            for (long j : data) evl[i] = PF.mul(evl[i], PF.sub(smp[i],j));
-        }
+    private static final long[] evaluate(long[] data, int n) {
+        if (data.length >= 2 * parthresh) return pool.invoke(new Evaluation(data, n, 0, data.length));
+        return evaluate(data, n, 0, data.length);
+    }
+
+    private static final long[] evaluate(long[] data, int n, int from, int to) {
+        long[] evl = new long[n];
+        for (int i = 0; i < n; i++) evl[i] = 1L;
+        PF.prodsub(evl, smp, n, data, from, to);
         return evl;
     }
+
+    // Linear factors of key at the sample points, or their inverses, into t
+    static final void factors(long key, long[] t, boolean inverse) throws Exception {
+        for (int i = 0; i < t.length; i++) t[i] = PF.sub(smp[i], key);
+        if (inverse) PF.inv(t, t, t.length);
+    }
+
+    // Evaluates halves of the keys in parallel and multiplies the partial evaluations together
+    private static final class Evaluation extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final long[] data;
+        private final int    n;
+        private final int    from;
+        private final int    to;
+
+        Evaluation(long[] data, int n, int from, int to) {this.data = data; this.n = n; this.from = from; this.to = to;}
+
+        protected long[] compute() {
+            if (to - from <= parthresh) return evaluate(data, n, from, to);
+            int mid = (from + to) >>> 1;
+            Evaluation left = new Evaluation(data, n, from, mid);
+            left.fork();
+            long[] evl = new Evaluation(data, n, mid, to).compute();
+            long[] lft = left.join();
+            for (int i = 0; i < evl.length; i++) evl[i] = PF.mul(evl[i], lft[i]);
+            return evl;
+        }
+    }
        
     /**
-     * Method to determine whether to use summary vector or CPI sync.
+     * Method to determine whether to use summary vector or CPI sync with the default tuning.
      * Summary vector is used as an optimization when the number of elements in 
-     * the set partition is smaller than a pre-configured internal threshold.
+     * the set partition is smaller than a threshold, see Tuning.isSV(int, long, long).
      * @param datalen the number of elements in the set partition that fall in [begin, end)
      * @param begin the beginning (inclusive) of the set partition to be reconciled
      * @param end the end (exclusive) of the set partition to be reconciled
      * @return true if summary vector is to be used, false otherwise indicating CPIsync should be used
      */
     public static final boolean isSV(int datalen, long begin, long end) {
-        return (end - begin <= svthresh || datalen <= svthresh);
+        return Tuning.DEFAULT.isSV(datalen, begin, end);
     }
 
     /**
@@ -138,7 +264,17 @@ public class Reconciler {
      * @param data summary vector of the set (or partition)  
      * @return array containing either the summary vector provided or the sycn vector
      */
-    public static final long[] syncArray(boolean sv, long[] data) {return sv ? data : evaluate(data);}
+    public static final long[] syncArray(boolean sv, long[] data) {return sv ? data : evaluate(data, syncLength());}
+
+    /**
+     * Function to return either the summary vector, or the leading polynomial evaluations for the 
+     * summary vector at pre-determined sample points.
+     * @param sv flags whether summary vectors or CPI synv vectors are to be returned
+     * @param data summary vector of the set (or partition)  
+     * @param len the length of the sync vector, see syncLength(int), ignored for summary vectors
+     * @return array containing either the summary vector provided or the sycn vector
+     */
+    public static final long[] syncArray(boolean sv, long[] data, int len) {return (sv ? SV : CPI).syncArray(data, len);}
     
     /**
      * Function that invokes the actual reconciliation algorithm. Computes set differences if 
@@ -154,13 +290,39 @@ public class Reconciler {
      * @throws Exception if any exceptions occur during the algorithmic computation 
      */
     public static boolean reconcile(boolean sv, long[] dA, long[] dB, int mA, int mB, Vector<long[]> deltas) throws Exception {
-        return sv ? svreconcile(dA, dB, deltas) : cpreconcile(dA, dB, mA, mB, deltas);
+        return (sv ? SV : CPI).reconcile(dA, dB, mA, mB, deltas);
     }  
     
-    private static final long[] svdiff(long[] svA, long[] svB) {
-        Set<Long> s = toSet(svA);
-        s.removeAll(toSet(svB));
-        return toArray(s);        
+    /**
+     * CPIsync reconciliation that finds the keys in A - B among the local keys of A, by evaluating
+     * the reduced characteristic polynomial at each of them, when that is cheaper than factoring it.
+     * Only B - A is then factored, and only if its expected degree is consistent.
+     * @param a the keys of the first peer (A), fetched from the partition only if they are searched
+     * @param begin the beginning (inclusive) of the partition to be reconciled
+     * @param end the end (exclusive) of the partition to be reconciled
+     * @param eA CPI sync vector from the partition to be reconciled from one peer (A) 
+     * @param eB CPI sync vector from the partition to be reconciled from another peer (B)
+     * @param mA size of the partition at the first peer (A)
+     * @param mB size of the partition at the other peer (B)
+     * @param deltas vector is populated with two long[] containing the keys for the computed set differences for A - B and B - A 
+     * @return whether the set differences where computed successfully
+     * @throws Exception if any exceptions occur during the algorithmic computation 
+     */
+    public static boolean reconcile(KeySet a, long begin, long end, long[] eA, long[] eB, int mA, int mB, Vector<long[]> deltas) throws Exception {
+        return cpreconcile(eA, eB, mA, mB, a, begin, end, deltas);
+    }
+
+    // Keys of sorted svA not in sorted svB, by merging; r is null to only count them
+    private static final int svdiff(long[] svA, long[] svB, long[] r) {
+        int n = 0;
+        for (int i = 0, j = 0; i < svA.length; i++) {
+            if (i > 0 && svA[i] == svA[i-1]) continue;  // duplicate
+            while (j < svB.length && svB[j] < svA[i]) j++;
+            if (j < svB.length && svB[j] == svA[i]) continue;
+            if (r != null) r[n] = svA[i];
+            n++;
+        }
+        return n;
     }
     
     private static final boolean svreconcile(long[] svA, long[] svB, Vector<long[]> deltas) {
@@ -169,20 +331,26 @@ public class Reconciler {
             deltas.add(new long[0]); 
             return true;
         }
-        long[] diffA = svdiff(svA,svB);
-        if(diffA.length > svthresh) return false;   // limit size of push vector
-        long[] diffB = svdiff(svB,svA);
-        if(diffB.length > svthresh) return false;   // limit size of pull vector 
+        svA = sorted(svA);
+        svB = sorted(svB);
+        int nA = svdiff(svA, svB, null);
+        if(nA > svmax) return false;      // limit size of push vector
+        int nB = svdiff(svB, svA, null);
+        if(nB > svmax) return false;      // limit size of pull vector 
+        long[] diffA = new long[nA];
+        long[] diffB = new long[nB];
+        svdiff(svA, svB, diffA);
+        svdiff(svB, svA, diffB);
         deltas.add(diffA);
         deltas.add(diffB);
         return true;
     }
 
-    private static final boolean validate(long[] eA, long[] eB, long[] dltaA, long[] dltaB) {        
+    private static final boolean validate(long[] eA, long[] eB, int dbound, long[] dltaA, long[] dltaB) {        
         long[] tA = new long[redundant];
         long[] tB = new long[redundant];
         for (int i = 0; i < redundant; i++) {
-            int k = maxdiff + i;
+            int k = dbound + i;
             tA[i] = eA[k];
             tB[i] = eB[k];
             for (long j : dltaB) tA[i] = PF.mul(tA[i], PF.sub(smp[k], j));            
@@ -192,10 +360,24 @@ public class Reconciler {
         return true;
     }
     
-    private static final boolean cpreconcile(long[] eA, long[] eB, int mA, int mB, Vector<long[]> deltas) throws Exception {
+    // Keys at which q vanishes, none unless there are exactly q.degree() of them
+    private static final long[] localRoots(Polynomial q, long[] keys) {
+        long[] r = new long[q.degree()];
+        int n = 0;
+        for (long k : keys) {
+            if (q.eval(k) != 0) continue;
+            if (n == r.length) return new long[0];
+            r[n++] = k;
+        }
+        return n == r.length ? r : new long[0];
+    }
+
+    private static final boolean cpreconcile(long[] eA, long[] eB, int mA, int mB, KeySet a, long begin, long end, Vector<long[]> deltas) throws Exception {
+        int dbound = eA.length - redundant;  // shorter vectors bound the difference to fewer keys
+        if (eA.length != eB.length || dbound <= 0 || eA.length > smp.length) return false;
         if (mA < 0 || mB < 0)   return false;
-        if (mA - mB > maxdiff)  return false;
-        if (mB - mA > maxdiff)  return false;
+        if (mA - mB > dbound)   return false;
+        if (mB - mA > dbound)   return false;
         if (mA == 0 && mB == 0) {
             deltas.add(new long[0]); 
             deltas.add(new long[0]); 
@@ -208,13 +390,25 @@ public class Reconciler {
         }        
         long[] pA = new long[eA.length+1];
         long[] pB = new long[eB.length+1];
-        if(Solver.solve(smp, eA, eB, mA, mB, pA, pB)) {
+        if(Solver.solve(Arrays.copyOf(smp, eA.length), eA, eB, mA, mB, pA, pB)) {
             Polynomial pAP = new Polynomial(pA);
             Polynomial pBP = new Polynomial(pB);
             Polynomial g = pAP.gcd(pBP);
-            deltas.add(pAP.div(g)[0].roots());
-            deltas.add(pBP.div(g)[0].roots());
-            if(validate(eA, eB, deltas.get(0),deltas.get(1))) return true;
+            Polynomial qA = pAP.div(g)[0];
+            Polynomial qB = pBP.div(g)[0];
+            int dA = qA.degree() > 0 ? qA.degree() : 0;
+            int dB = qB.degree() > 0 ? qB.degree() : 0;
+            if (dA - dB != mA - mB) return false;
+            // Horner over the local keys costs mA * dA, splitting costs about bits * dA^2
+            boolean search = (a != null && dA > 1 && (long) mA <= 2L * PF.bits() * dA);
+            long[] dltaA = search ? localRoots(qA, a.keySetArray(begin, end)) : qA.roots();
+            if (dltaA.length != dA) return false;
+            long[] dltaB = qB.roots();
+            if (dltaB.length != dB) return false;
+            if(!validate(eA, eB, dbound, dltaA, dltaB)) return false;
+            deltas.add(dltaA);
+            deltas.add(dltaB);
+            return true;
         } 
         return false;
     }    
@@ -1,5 +1,6 @@
 package com.cosocket.syncsmart.cpisync;
 import com.cosocket.syncsmart.cpisync.PF;
+import com.cosocket.syncsmart.cpisync.PolyOps;
 /*
 Copyright (c) 2013, Cosocket LLC
 All rights reserved.
@@ -32,127 +33,83 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 /**
  * Implements methods used by the CPI set reconciliation algorithm
- * that are called by the Reconciler class.
+ * that are called by the Reconciler class. The ratio of the characteristic polynomials
+ * is recovered from its values at the sample points by rational function interpolation:
+ * the polynomial through the values is computed in Lagrange form, and the extended
+ * Euclidean algorithm on it and the product of (x - sample point) yields the numerator and
+ * denominator of least degrees, in time quadratic in the number of sample points.
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  */
 final class Solver {
+    // pA = the numerator, pB = the denominator, both monic, of the rational function of least degree 
+    // whose values at smp are evA/evB; deg pA - deg pB must be mA - mB
     protected static final boolean solve (long[] smp, long[] evA, long[] evB, int mA, int mB, long[] pA, long[] pB) throws Exception {
-        int mbar = smp.length;
+        int n     = smp.length;
         int delta = mA - mB;
-        int tmA = (mbar + delta) / 2;
-        int tmB = (mbar - delta) / 2;
-        if(tmA < 0 || tmB < 0 || tmA + tmB <= 0) return false;
+        if (n == 0 || delta >= n || -delta >= n) return false;
+        int k     = Math.floorDiv(n - 1 + delta, 2);  // bounds deg pA <= k, deg pB <= n - 1 - k
         
-        long[] evl = new long[mbar];
-        for (int i = 0; i < mbar; i++) evl[i] = PF.div(evA[i], evB[i]);
+        long[] evl = new long[n];
+        PF.inv(evB, evl, n);
+        for (int i = 0; i < n; i++) evl[i] = PF.mul(evA[i], evl[i]);
 
-        int rank = tsolv(smp, evl, tmA, tmB, pA, pB);
-        if (rank > tmA + tmB)  return false;
-        if (rank == tmA + tmB) return true;       
-        if (rank == 0) return false;
+        long[] r0 = new long[n + 1];  // remainders
+        long[] r1 = new long[n + 1];
+        long[] t0 = new long[n + 1];  // cofactors of the interpolating polynomial
+        long[] t1 = new long[n + 1];
+        long[] q  = new long[n + 1];
+        long[] pr = new long[n + 2];
+        int n0    = n + 1;
+        int n1    = interpolate(smp, evl, n, r0, r1);
+        int nt0   = 0;
+        int nt1   = 1;
+        t1[0]     = 1;
 
-        int mDiff = tmA + tmB - rank;
-        tmA -= mDiff;
-        tmB -= mDiff;
-
-        if (tmA <= 0 || tmB <= 0) {
-            tmA = rank;
-            tmB = 0;
+        while (n1 - 1 > k) {  // r1 = t1 * interpolant mod prod(x - smp[i]), stop at the first deg r1 <= k
+            int nq = n0 - n1 + 1;
+            n0  = PolyOps.rem(r0, n0, r1, n1, PF.inv(r1[n1-1]), q);
+            nt0 = PolyOps.sub(t0, nt0, pr, PolyOps.mul(q, nq, t1, nt1, pr));
+            long[] t = r0; r0 = r1; r1 = t; 
+            t = t0; t0 = t1; t1 = t;
+            int m = n0; n0 = n1; n1 = m;
+            m = nt0; nt0 = nt1; nt1 = m;
         }
-                               
-        rank = tsolv(smp, evl, tmA, tmB, pA, pB);
-        return (rank == tmA + tmB);
-    }
-
-    private static final int tsolv (long[] smp, long[] evl, int mA, int mB, long[] pA, long[] pB) throws Exception {
-        long[][] vand = vandermonde(smp, evl, mA, mB);
-        int rank      = gauss(vand);        
-        if (rank == mA + mB) coeffs(vand, mA, mB, pA, pB);
-        return rank;
+        if (n1 == 0 || nt1 == 0 || (n1 - 1) - (nt1 - 1) != delta) return false;
+        
+        long lc = PF.inv(t1[nt1-1]);
+        if (PF.mul(r1[n1-1], lc) != 1) return false;  // both characteristic polynomials are monic
+        for (int i = 0; i < pA.length; i++) pA[i] = i < n1  ? PF.mul(r1[i], lc) : 0;
+        for (int i = 0; i < pB.length; i++) pB[i] = i < nt1 ? PF.mul(t1[i], lc) : 0;
+        return true;
     }
-    
-    private static final long[][] vandermonde (long[] smp, long[] evl, int mA, int mB) {
-        int nrows = mA + mB;
-        int ncols = nrows + 1;
-        long[] pv = new long[(mA>mB?mA:mB) + 1];
-        long[][] result = new long[nrows][ncols];
 
-        pv[0] = 1;
-        for (int i = 0; i < nrows; i++) {
-            for (int j = 1; j < pv.length; j++) pv[j] = PF.mul(pv[j-1],smp[i]);
-            for (int j = 0; j < mA; j++) result[i][j] = pv[j];
-            for (int j = 0; j < mB; j++) 
-                result[i][mA + j] = PF.mul(PF.neg(evl[i]), pv[j]);
-            result[i][mA + mB] = PF.sub(PF.mul(evl[i], pv[mB]), pv[mA]);
+    // m = prod(x - x[i]) and f = the polynomial of degree < n with f(x[i]) = y[i], for i < n
+    private static final int interpolate(long[] x, long[] y, int n, long[] m, long[] f) throws Exception {
+        long[] w = new long[n];
+        long[] c = new long[n];
+        m[0] = 1;
+        for (int i = 0; i < n; i++) {  // m *= (x - x[i])
+            m[i+1] = m[i];
+            for (int j = i; j > 0; j--) m[j] = PF.sub(m[j-1], PF.mul(x[i], m[j]));
+            m[0] = PF.neg(PF.mul(x[i], m[0]));
         }
-        return result;
-    }
-
-    private static final void coeffs (long[][] mat, int mA, int mB, long[] pA, long[] pB) throws Exception {
-        long[] c = new long [mA + mB]; 
-        // store the solution to the linear system in c
-        int i, j;
-        for (i = mA + mB - 1; i >= 0; i--) {
-            c[i] = PF.div(mat[i][mA + mB], mat[i][i]);
-            for (j = 0; j < i; j++) // subtract out the coefficient from the previous entries
-                mat[j][mA + mB] = PF.sub(mat[j][mA + mB], PF.mul(c[i], mat[j][i]));
+        for (int i = 0; i < n; i++) {  // barycentric weights 1 / prod(x[i] - x[j]), j != i
+            w[i] = 1;
+            for (int j = 0; j < n; j++) if (j != i) w[i] = PF.mul(w[i], PF.sub(x[i], x[j]));
         }
-        
-        for (i = 0; i < mA; i++) pA[i] = c[i];
-        pA[mA] = 1L;
-        for (i = mA + 1; i < pA.length; i++) pA[i] = 0;
-        
-        for (i = 0; i < mB; i++) pB[i] = c[mA + i];
-        pB[mB] = 1L;
-        for (i = mB + 1; i < pB.length; i++) pB[i] = 0;
-    }
-        
-    // Reduce matrix to row echelon form using Gauss-Jordan elimination
-    private static final int gauss(long[][] mat) throws Exception {
-        int nrows = mat.length;
-        int ncols = mat[0].length;
-            
-        int npivs = 0;
-        for (int j = 0; j < ncols; j++) {
-            int pivrow = npivs;
-            while (pivrow < nrows && mat[pivrow][j] == 0) pivrow++;
-            if (pivrow == nrows) continue;
-            
-            long[] tmp  = mat[npivs];  // swap the pivot row
-            mat[npivs]  = mat[pivrow];
-            mat[pivrow] = tmp;           
-            pivrow      = npivs;
-            
-            npivs++;
-                
-            long factor = PF.inv(mat[pivrow][j]);
-            for (int k = 0; k < ncols; k++)  // scale the pivot row
-                mat[pivrow][k] = PF.mul(mat[pivrow][k], factor);
-                
-            for (int i = pivrow + 1; i < nrows; i++)
-                addrows(mat, pivrow, i, PF.neg(mat[i][j]));
+        PF.inv(w, w, n);
+        for (int i = 0; i < n; i++) w[i] = PF.mul(w[i], y[i]);
+        for (int j = 0; j < n; j++) f[j] = 0;
+        for (int i = 0; i < n; i++) {  // f += w[i] * m / (x - x[i]), by synthetic division
+            long b = 0;
+            for (int j = n; j > 0; j--) {
+                b = PF.add(m[j], PF.mul(x[i], b));  // coefficient j - 1 of the quotient
+                c[j-1] = b;
+            }
+            for (int j = 0; j < n; j++) f[j] = PF.mac(f[j], w[i], c[j]);
         }
-            
-        for (int i = nrows - 1; i >= 0; i--) {
-            int pivcol = 0;
-            while (pivcol < ncols && mat[i][pivcol] == 0) pivcol++;
-            if (pivcol == ncols) continue;
-                
-            for (int j = i - 1; j >= 0; j--)
-                 addrows(mat, i, j, PF.neg(mat[j][pivcol]));
-        }
-        return rank(mat);
-    }
-    
-    private static final void addrows(long[][] mat, int srcrow, int dstrow, long factor) {
-        for (int k = 0, ncols = mat[0].length; k < ncols; k++)
-            mat[dstrow][k] = PF.add(mat[dstrow][k], PF.mul(mat[srcrow][k], factor));
-    }
-    
-    private static final int rank (long[][] mat) {
-        int r = 0;
-        for (int i = 0; i < mat.length; i++) if (mat[i][i] != 0) r++;
-        return r;
+        for (int j = 0; j < n; j++) f[j] = PF.reduce(f[j]);
+        return PolyOps.norm(f, n);
     }
 }
@@ -0,0 +1,61 @@
+package com.cosocket.syncsmart.cpisync;
+import java.util.Vector;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * A set reconciliation algorithm, i.e., the computation of a sync vector that summarizes the keys 
+ * of a set (or partition) and the computation of the set differences from the sync vectors of two 
+ * peers. Reconciler.SV (summary vectors) and Reconciler.CPI (CPIsync) are provided, and IBLT 
+ * (Invertible Bloom Lookup Tables) is an alternative for larger differences.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public interface Strategy {
+    /**
+     * Computes the sync vector for the keys of a set (or partition)
+     * @param data the keys in the set (or partition), ascending
+     * @param len the length of the sync vector, whose meaning depends on the strategy; it must be
+     *        the same at both peers and is taken from the sync vector received from the other peer
+     * @return the sync vector
+     */
+    public long[]  syncArray(long[] data, int len);
+    /**
+     * Computes the set differences from the sync vectors of the two peers 
+     * @param eA sync vector from the set or partition to be reconciled from one peer (A) 
+     * @param eB sync vector from the set or partition to be reconciled from another peer (B)
+     * @param mA size of the set (or partition) at the first peer (A)
+     * @param mB size of the set (or partition) at the other peer (B)
+     * @param deltas vector is populated with two long[] containing the keys for the computed set differences for A - B and B - A 
+     * @return whether the set differences where computed successfully
+     * @throws Exception if any exceptions occur during the algorithmic computation 
+     */
+    public boolean reconcile(long[] eA, long[] eB, int mA, int mB, Vector<long[]> deltas) throws Exception;
+}
@@ -0,0 +1,128 @@
+package com.cosocket.syncsmart.cpisync;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * The parameters that trade the size of sync vectors against the cost of solving them and of
+ * falling back to moving all the items of a partition: the largest difference in keys a CPI 
+ * vector reconciles (maxdiff), the largest partition for which the keys are sent as a summary 
+ * vector instead (svthresh), the widest partition whose items are moved in bulk when it
+ * fails to reconcile (bulk), and the number of children into which a partition that fails to
+ * reconcile is split, all of which are probed in the next round trip (fanout). Peers negotiate 
+ * the tuning of a traversal, see Calibration.tune and min(Tuning); both must use the same one 
+ * for the vectors to be comparable. Instances are immutable.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public final class Tuning {
+    /**
+     * The tuning used when nothing is known about the transport, and by the static methods of Reconciler;
+     * a partition that fails is split in two, a wider fanout is only taken when Calibration chooses it
+     */
+    public static final Tuning DEFAULT = new Tuning(128, 64, 1024, 2);
+    private static final int   maxfanout = 16;
+
+    private final int  svthresh;
+    private final int  maxdiff;
+    private final long bulk;
+    private final int  fanout;
+
+    /**
+     * Constructs a tuning, the parameters are limited to the ranges supported by Reconciler
+     * @param svthresh the number of keys or the width of a partition up to which summary vectors are used
+     * @param maxdiff the largest difference in keys that a CPI vector reconciles
+     * @param bulk the width of a partition up to which its items are moved in bulk if it fails to reconcile 
+     * @param fanout the number of children of a partition that fails to reconcile, rounded down to a power of two
+     */
+    public Tuning(int svthresh, int maxdiff, long bulk, int fanout) {
+        this.svthresh = svthresh < 0 ? 0 : (svthresh > Reconciler.svmax ? Reconciler.svmax : svthresh);
+        this.maxdiff  = maxdiff < Reconciler.mindiff ? Reconciler.mindiff : (maxdiff > Reconciler.maxcap ? Reconciler.maxcap : maxdiff);
+        this.bulk     = bulk < 0 ? 0 : bulk;
+        this.fanout   = fanout < 2 ? 2 : (fanout > maxfanout ? maxfanout : (int) PF.floorpow2(fanout));
+    }
+
+    public int  getSvthresh() {return svthresh;}
+    public int  getMaxdiff()  {return maxdiff;}
+    public long getBulk()     {return bulk;}
+    public int  getFanout()   {return fanout;}
+
+    /**
+     * Determines whether to use summary vector or CPI sync for a partition
+     * @param datalen the number of keys in the partition
+     * @param begin the beginning (inclusive) of the partition
+     * @param end the end (exclusive) of the partition
+     * @return true if summary vector is to be used, false if CPIsync is to be used
+     */
+    public boolean isSV(int datalen, long begin, long end) {
+        return (end - begin <= svthresh || datalen <= svthresh);
+    }
+
+    /**
+     * Return the length of the longest CPI sync vectors of this tuning
+     * @return the length of the CPI sync vectors
+     */
+    public int syncLength() {return maxdiff + Reconciler.redundant;}
+
+    /**
+     * Return the length of CPI sync vectors that suffice to reconcile sets differing in up to
+     * the given number of keys, which is limited by the length of the longest vectors.
+     * Shorter vectors are the leading elements of the longer ones. 
+     * @param bound an upper bound on the number of keys in exactly one of the two sets
+     * @return the length of the CPI sync vectors to use
+     */
+    public int syncLength(int bound) {
+        return (bound < Reconciler.mindiff ? Reconciler.mindiff : (bound > maxdiff ? maxdiff : bound)) + Reconciler.redundant;
+    }
+
+    /**
+     * Return the depth below the complete range at which a traversal of the partitions is to be 
+     * started so that each partition is expected to differ in few enough keys for CPI sync to succeed
+     * @param estimate the estimated number of keys in exactly one of the two sets
+     * @return the depth of the first partition, 0 for the complete range
+     */
+    public int startDepth(int estimate) {
+        int depth = 0;
+        int maxdepth = Long.numberOfTrailingZeros(Reconciler.getDatamax());
+        while (depth < maxdepth && (estimate >> depth) > maxdiff / 2) depth++;
+        return depth;
+    }
+
+    /**
+     * Negotiates the tuning of a traversal between two peers, each parameter is the smaller of the 
+     * two, so that neither sends vectors longer or reconciles differences larger than it chose to
+     * @param t the tuning chosen by the other peer
+     * @return the tuning to use for the traversal
+     */
+    public Tuning min(Tuning t) {
+        return new Tuning(Math.min(svthresh, t.svthresh), Math.min(maxdiff, t.maxdiff), Math.min(bulk, t.bulk), Math.min(fanout, t.fanout));
+    }
+
+    public String toString() {return "svthresh: " + svthresh + " maxdiff: " + maxdiff + " bulk: " + bulk + " fanout: " + fanout;}
+}
@@ -0,0 +1,241 @@
+package com.cosocket.syncsmart.cpisync;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * The xxHash64 hash function (https://github.com/Cyan4973/xxHash), which consumes 8 bytes per 
+ * step in four independent lanes and mixes every input bit into all of the 64 output bits. It is
+ * used to derive the keys of items, see Reconciler.hash, which must be well distributed in the key 
+ * space for the partitions to be balanced and keys of distinct items to rarely collide. The static
+ * methods hash a byte[] or ByteBuffer in one call, and an instance hashes a large item incrementally,
+ * e.g., from an InputStream or FileChannel, without holding all of it in memory:
+ *
+ *     long h = new XXHash64().update(in).digest();
+ *
+ * The 8 byte words are loaded from byte arrays through a little-endian VarHandle view; direct 
+ * buffers are copied through a byte array a chunk at a time.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+public final class XXHash64 {
+    private static final long P1    = 0x9E3779B185EBCA87L;
+    private static final long P2    = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3    = 0x165667B19E3779F9L;
+    private static final long P4    = 0x85EBCA77C2B2AE63L;
+    private static final long P5    = 0x27D4EB2F165667C5L;
+    private static final int  chunk = 1<<16;   // bytes copied at a time from buffers, streams and channels
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INTS  = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final long   seed;
+    private final byte[] mem = new byte[32];   // partial stripe
+    private int          nmem;
+    private long         v1, v2, v3, v4;
+    private long         total;
+    private byte[]       tmp;                   // for copying, allocated on first use
+
+    /**
+     * Constructs an incremental hash with seed 0
+     */
+    public XXHash64() {this(0);}
+
+    /**
+     * Constructs an incremental hash
+     * @param seed the seed of the hash
+     */
+    public XXHash64(long seed) {this.seed = seed; reset();}
+
+    /**
+     * Discards the bytes hashed so far
+     */
+    public void reset() {
+        v1    = seed + P1 + P2;
+        v2    = seed + P2;
+        v3    = seed;
+        v4    = seed - P1;
+        total = 0;
+        nmem  = 0;
+    }
+
+    /**
+     * Hashes len bytes of b from off
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @return this
+     */
+    public XXHash64 update(byte[] b, int off, int len) {
+        total += len;
+        if (nmem > 0) {  // complete the buffered stripe first
+            int k = len < 32 - nmem ? len : 32 - nmem;
+            System.arraycopy(b, off, mem, nmem, k);
+            nmem += k;
+            off  += k;
+            len  -= k;
+            if (nmem < 32) return this;
+            stripe(mem, 0);
+            nmem = 0;
+        }
+        int end = off + len;
+        for (; off + 32 <= end; off += 32) stripe(b, off);
+        nmem = end - off;
+        System.arraycopy(b, off, mem, 0, nmem);
+        return this;
+    }
+
+    /**
+     * Hashes the bytes of buf between its position and limit, which are left unchanged
+     * @param buf the bytes
+     * @return this
+     */
+    public XXHash64 update(ByteBuffer buf) {
+        if (buf.hasArray()) return update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        ByteBuffer b = buf.duplicate();
+        byte[] t     = scratch();
+        while (b.hasRemaining()) {
+            int n = b.remaining() < t.length ? b.remaining() : t.length;
+            b.get(t, 0, n);
+            update(t, 0, n);
+        }
+        return this;
+    }
+
+    /**
+     * Hashes the bytes read from in until its end, in is not closed
+     * @param in the stream
+     * @return this
+     * @throws IOException if reading from in fails
+     */
+    public XXHash64 update(InputStream in) throws IOException {
+        byte[] t = scratch();
+        for (int n; (n = in.read(t)) >= 0; ) update(t, 0, n);
+        return this;
+    }
+
+    /**
+     * Hashes the bytes read from ch, e.g., a FileChannel from its position, until its end
+     * @param ch the channel, blocking
+     * @return this
+     * @throws IOException if reading from ch fails
+     */
+    public XXHash64 update(ReadableByteChannel ch) throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(scratch());
+        while (ch.read(b) >= 0) {
+            update(b.array(), 0, b.position());
+            b.clear();
+        }
+        return this;
+    }
+
+    /**
+     * Return the hash of the bytes hashed so far, more may be hashed after
+     * @return the hash
+     */
+    public long digest() {
+        long h = total >= 32 ? converge(v1, v2, v3, v4) : seed + P5;
+        return tail(mem, 0, nmem, h + total);
+    }
+
+    /**
+     * Computes the hash of len bytes of b from off
+     * @param b the bytes
+     * @param off the offset of the first byte
+     * @param len the number of bytes
+     * @param seed the seed of the hash
+     * @return the hash
+     */
+    public static long hash(byte[] b, int off, int len, long seed) {
+        int end = off + len;
+        long h  = seed + P5;
+        if (len >= 32) {
+            long a1 = seed + P1 + P2, a2 = seed + P2, a3 = seed, a4 = seed - P1;
+            for (; off + 32 <= end; off += 32) {
+                a1 = round(a1, (long) LONGS.get(b, off));
+                a2 = round(a2, (long) LONGS.get(b, off + 8));
+                a3 = round(a3, (long) LONGS.get(b, off + 16));
+                a4 = round(a4, (long) LONGS.get(b, off + 24));
+            }
+            h = converge(a1, a2, a3, a4);
+        }
+        return tail(b, off, end, h + len);
+    }
+
+    /**
+     * Computes the hash of the bytes of buf between its position and limit, which are left unchanged
+     * @param buf the bytes, a heap or direct buffer
+     * @param seed the seed of the hash
+     * @return the hash
+     */
+    public static long hash(ByteBuffer buf, long seed) {
+        if (buf.hasArray()) return hash(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), seed);
+        return new XXHash64(seed).update(buf).digest();
+    }
+
+    private byte[] scratch() {
+        if (tmp == null) tmp = new byte[chunk];
+        return tmp;
+    }
+
+    private void stripe(byte[] b, int i) {
+        v1 = round(v1, (long) LONGS.get(b, i));
+        v2 = round(v2, (long) LONGS.get(b, i + 8));
+        v3 = round(v3, (long) LONGS.get(b, i + 16));
+        v4 = round(v4, (long) LONGS.get(b, i + 24));
+    }
+
+    private static long round(long acc, long x) {return Long.rotateLeft(acc + x * P2, 31) * P1;}
+
+    private static long merge(long h, long v) {return (h ^ round(0, v)) * P1 + P4;}
+
+    private static long converge(long a1, long a2, long a3, long a4) {
+        long h = Long.rotateLeft(a1, 1) + Long.rotateLeft(a2, 7) + Long.rotateLeft(a3, 12) + Long.rotateLeft(a4, 18);
+        return merge(merge(merge(merge(h, a1), a2), a3), a4);
+    }
+
+    // Hashes the last bytes [i, end) of b, fewer than 32, into h and avalanches it
+    private static long tail(byte[] b, int i, int end, long h) {
+        for (; i + 8 <= end; i += 8) h = Long.rotateLeft(h ^ round(0, (long) LONGS.get(b, i)), 27) * P1 + P4;
+        if (i + 4 <= end) {h = Long.rotateLeft(h ^ ((int) INTS.get(b, i) & 0xffffffffL) * P1, 23) * P2 + P3; i += 4;}
+        for (; i < end; i++) h = Long.rotateLeft(h ^ (b[i] & 0xff) * P5, 11) * P1;
+        h ^= h >>> 33;
+        h *= P2;
+        h ^= h >>> 29;
+        h *= P3;
+        h ^= h >>> 32;
+        return h;
+    }
+}
@@ -43,6 +43,8 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * @param <V> type of the Serializable items to be reconciled, accessed via a StoreInterface
  */
 public class DatagramTransport<V extends Serializable> {
+    public static final int MAXPDU = 65507;  // largest UDP payload, IBLT PDUs may exceed the MTU
+    private static final int RCVBUF = 1 << 22;  // socket buffer for the items moved by a window of PDUs at once
     private DatagramChannel channel;
     private SyncInterface<V> sync;
     private MoverInterface<V> mover;
@@ -63,6 +65,7 @@ public class DatagramTransport<V extends Serializable> {
             channel = DatagramChannel.open();
             channel.socket().bind(bind);
             channel.socket().setBroadcast(true);
+            channel.socket().setReceiveBufferSize(RCVBUF);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -85,7 +88,7 @@ public class DatagramTransport<V extends Serializable> {
     }
        
     private class Rcvr extends Thread {
-        private ByteBuffer rcvData = ByteBuffer.allocate(1600);
+        private ByteBuffer rcvData = ByteBuffer.allocate(MAXPDU);
         public void run() {
             this.setName("Rcvr Thread");
             while (stopAll == false && channel.isOpen()) {
@@ -94,12 +97,16 @@ public class DatagramTransport<V extends Serializable> {
                     InetSocketAddress rc = (InetSocketAddress) channel.receive(rcvData);
                     rcvData.flip();
                     if (rc != null) {
-                        if(SyncPDU.isSyncPDU(rcvData)) {
-                            SyncPDU s = SyncPDU.fromBuffer(rcvData);
-                            if (s != null) sync.enquePDU(s);
-                        } else {
-                            ItemPDU<V> s = (new ItemPDU<V>(null,null,null,0,null)).fromBuffer(rcvData);
-                            if (s != null) mover.enquePDU(s);
+                        try {
+                            if(SyncPDU.isSyncPDU(rcvData)) {
+                                SyncPDU s = SyncPDU.fromBuffer(rcvData);
+                                if (s != null) sync.enquePDU(s);
+                            } else {
+                                ItemPDU<V> s = (new ItemPDU<V>(null,null,null,0,null)).fromBuffer(rcvData);
+                                if (s != null) mover.enquePDU(s);
+                            }
+                        } catch (Exception e) {   // a malformed PDU is dropped, not the receiver
+                            System.out.println("Malformed PDU from " + rc + ": " + e);
                         }
                     }
 
@@ -114,7 +121,7 @@ public class DatagramTransport<V extends Serializable> {
     }
         
     private class Sndr extends Thread {
-        private ByteBuffer sndData = ByteBuffer.allocate(1600);
+        private ByteBuffer sndData = ByteBuffer.allocate(MAXPDU);
         public void run() {
             while (stopAll == false && channel.isOpen()) {
                 this.setName("Sndr Thread");
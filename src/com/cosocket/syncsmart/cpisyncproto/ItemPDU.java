@@ -47,7 +47,9 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * The PDU includes a MAGIC string and version number, the from and to SyncPeer instances, 
  * the setID identifying the set being reconciled, the key of the item drawn from a finite 
  * field used by the reconciliation algorithm, and the item itself. Variable length fields
- * are prefixed with a 32bit length.
+ * are prefixed with a 32bit length. The item is kept in its serialized form as well, which a 
+ * SerialStoreInterface hands over directly; it is serialized for transmission only if the PDU 
+ * was constructed from the item, and deserialized only when getItem() is called.
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  * @param <V> is any Serializable object that can fit within a datagram on the space remaining after the other protocol fields
@@ -60,12 +62,44 @@ public class ItemPDU<V extends Serializable> {
     private byte[] setID;
     private long tag;
     private V item;
+    private ByteBuffer raw;   // the serialized item, null until needed
 
     public SyncPeer getFrom() {return from;}
     public SyncPeer getTo() {return to;}
     public byte[] getSetID() {return setID;}
     public long getKey() {return tag;}
-    public V getItem() {return item;}
+
+    /**
+     * Returns the item, deserializing it if it was received
+     * @return the item, null if it cannot be deserialized
+     */
+    @SuppressWarnings("unchecked")
+    public V getItem() {
+        if (item == null && raw != null) {
+            try {
+                item = (V) deserialize(raw.duplicate());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Returns the serialized item, serializing it if the PDU was constructed from the item
+     * @return a read-only buffer of the serialized item, null if it cannot be serialized
+     */
+    public ByteBuffer getBytes() {
+        if (raw == null) {
+            try {
+                raw = ByteBuffer.wrap(serialize(item));
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        return raw.asReadOnlyBuffer();
+    }
 
     public ItemPDU(SyncPeer from, SyncPeer to, byte[] setID, long tag, V item) {
         this.from = from;
@@ -74,8 +108,68 @@ public class ItemPDU<V extends Serializable> {
         this.tag = tag;
         this.item = item;
     }
+
+    /**
+     * Constructs a PDU of an item in serialized form, e.g., as kept by a SerialStoreInterface
+     * @param from the sender
+     * @param to the receiver
+     * @param setID the set to which the item belongs
+     * @param tag the key of the item
+     * @param raw the serialized item from its position to its limit, which is not copied
+     * @return the PDU
+     */
+    public static <V extends Serializable> ItemPDU<V> ofBytes(SyncPeer from, SyncPeer to, byte[] setID, long tag, ByteBuffer raw) {
+        ItemPDU<V> m = new ItemPDU<V>(from, to, setID, tag, null);
+        m.raw        = raw.slice();
+        return m;
+    }
+
+    /**
+     * Serializes an object with an ObjectOutputStream
+     * @param o the object
+     * @return the serialized object
+     * @throws Exception if the object cannot be serialized
+     */
+    public static byte[] serialize(Object o) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutput out = new ObjectOutputStream(bos);
+        out.writeObject(o);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Deserializes an object with an ObjectInputStream
+     * @param b the serialized object from its position to its limit
+     * @return the object
+     * @throws Exception if the object cannot be deserialized
+     */
+    public static Object deserialize(ByteBuffer b) throws Exception {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        ObjectInput in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        Object o = in.readObject();
+        in.close();
+        return o;
+    }
        
-    @SuppressWarnings("unchecked")
+    /**
+     * Compares two serialized items as the items themselves are compared, by equals, so that items 
+     * that are equal but serialize differently, e.g., hash-ordered collections, are the same
+     * @param a a serialized item from its position to its limit
+     * @param b another serialized item from its position to its limit
+     * @return true if the bytes are equal, or else if both deserialize to equal items
+     */
+    public static boolean sameItem(ByteBuffer a, ByteBuffer b) {
+        if (a.equals(b)) return true;
+        try {
+            Object x = deserialize(a.duplicate());
+            return x != null && x.equals(deserialize(b.duplicate()));
+        } catch (Exception e) {   // not an item, and not the same bytes
+            return false;
+        }
+    }
+
     public ItemPDU<V> fromBuffer(ByteBuffer buf) throws Exception {        
         SyncPeer from;
         SyncPeer to;
@@ -107,41 +201,18 @@ public class ItemPDU<V extends Serializable> {
         byte[] itemBytes = new byte[i];
         buf.get(itemBytes, 0, i);
         
-        ByteArrayInputStream bis = new ByteArrayInputStream(itemBytes);
-        ObjectInput in = null;
-        Object item;
-        try {
-          in = new ObjectInputStream(bis);
-          item = in.readObject(); 
-          bis.close();
-          in.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-        
         this.from = from;
         this.to = to;
         this.setID = setID;
         this.tag = tag;
-        this.item = (V) item;
+        this.item = null;
+        this.raw = ByteBuffer.wrap(itemBytes);   // deserialized by getItem() if needed
         return this;
     }
     
     public boolean toBuffer(ByteBuffer buf) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutput out = null;
-        byte[] itemBytes = null;
-        try {
-            out = new ObjectOutputStream(bos);   
-            out.writeObject(item);
-            itemBytes = bos.toByteArray();
-            out.close();
-            bos.close();
-        } catch (Exception e) {
-            e.printStackTrace();        
-            return false;
-        }
+        ByteBuffer itemBytes = getBytes();
+        if (itemBytes == null) return false;
         
         byte[] tmp;
         buf.clear();
@@ -159,8 +230,8 @@ public class ItemPDU<V extends Serializable> {
         buf.putInt(setID.length);
         buf.put(setID, 0, setID.length);
         buf.putLong(tag);
-        buf.putInt(itemBytes.length);
-        buf.put(itemBytes, 0, itemBytes.length);
+        buf.putInt(itemBytes.remaining());
+        buf.put(itemBytes);
         buf.flip();
         return true;
     }
@@ -0,0 +1,730 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+import com.cosocket.syncsmart.cpisync.EvalIndex;
+import com.cosocket.syncsmart.cpisync.Reconciler;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * A durable implementation of the SerialStoreInterface over an append-only log of segment files in
+ * a directory. Adding an item appends a PUT record of the key and the serialized item, and removing
+ * one appends a DEL record of the key; each record starts with a CRC32C of the rest. A LongLongMap maps
+ * each key to the segment and offset of its PUT record, from which the item is read on demand.
+ * 
+ * Writes are made durable by group commit: a committer thread forces the log to disk as soon as 
+ * records are pending, and every writer waiting on it is released by the same force, so that 
+ * concurrent writers share one fsync. A store constructed as asynchronous does not wait, and its
+ * writes are durable within one force of the committer. Once a force fails, the writers waiting on
+ * it throw, as do all later writes and close, since a retried fsync cannot be trusted.
+ * 
+ * A segment that is full is closed and a new one started. A timer periodically compacts a closed 
+ * segment in which less than half the bytes are live, by appending its live records to the open
+ * segment and deleting the file; a DEL record is copied only if the key is still absent, so that it 
+ * keeps a PUT in an older segment from being recovered. The keys are indexed by a LongIndex and 
+ * the CPI sync vector by an EvalIndex, as in Store.
+ * 
+ * On close, and after a compaction that drops a segment, which voids the last checkpoint, the 
+ * sorted keys with their locations and the EvalIndex are checkpointed to a memory-mapped file, 
+ * together with the position in the log and the sizes of the segments. On construction a checkpoint that is intact and matches the segments on disk is
+ * loaded in bulk, and only the log after its position is replayed; otherwise all the segments are 
+ * replayed in order with sequential reads and the indices rebuilt. Either way, a log torn by a 
+ * crash is truncated after its last intact record.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ * @param <V> type of items in set to be reconciled, must be Serializable
+ */
+public class LogStore<V extends Serializable> implements SerialStoreInterface<V> {
+    private static final long SEGMENT = 1L << 26;   // bytes in a segment before a new one is started
+    private static final int  HDR     = 17;         // crc, op, key and length before each item
+    private static final byte PUT     = 1;
+    private static final byte DEL     = 2;
+    private static final long COMPACT = 60 * 1000;  // ms between compactions
+    private static final long MAGIC   = 0x53594e43494e4458L;   // "SYNCINDX" heading a checkpoint
+    private static final String INDEX = "index.map";
+
+    private final byte[]        setID;
+    private final File          dir;
+    private final boolean       synchronous;
+    private final LongLongMap   map   = new LongLongMap();     // key to segment << 32 | offset of its PUT record
+    private final LongIndex     keys  = new LongIndex();
+    private final EvalIndex     evals = new EvalIndex();
+    private final ConcurrentHashMap<Integer, Segment> segs = new ConcurrentHashMap<Integer, Segment>();
+    private final Object        commit = new Object();
+    private final Timer         timer  = new Timer(true);
+    private final Thread        committer;
+    private volatile Segment    active;
+    private volatile long       written = 0;     // bytes appended since construction
+    private long                forced  = 0;     // bytes of those forced to disk, guarded by commit
+    private volatile IOException failed = null;  // the first force that failed, set under commit
+    private volatile boolean    closed  = false;
+    private long                checkpointed = -1;   // written at the last checkpoint, -1 if there is none
+
+    // A segment file. Its channel is shared by all threads, and an interrupt of one closes it for all, so
+    // reads, writes and forces reopen it and retry, then restore the interrupt; a record is thus never torn
+    private static final class Segment {
+        private final int            id;
+        private final File           file;
+        private volatile FileChannel ch;
+        private volatile boolean     open = true;   // false once closed by the store, never reopened then
+        private long                 size;
+        private long                 live = 0;   // bytes of the PUT records still mapped
+
+        private Segment(File dir, int id) throws IOException {
+            this.id   = id;
+            this.file = new File(dir, String.format("%08x.log", id));
+            this.ch   = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = ch.size();
+        }
+
+        private int read(ByteBuffer b, long pos) throws IOException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    FileChannel c = ch;
+                    try {
+                        return c.read(b, pos);
+                    } catch (ClosedChannelException e) {
+                        interrupted |= reopen(c, e);
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        private int write(ByteBuffer b, long pos) throws IOException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    FileChannel c = ch;
+                    try {
+                        return c.write(b, pos);
+                    } catch (ClosedChannelException e) {
+                        interrupted |= reopen(c, e);
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        private void force() throws IOException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    FileChannel c = ch;
+                    try {
+                        c.force(false);
+                        return;
+                    } catch (ClosedChannelException e) {
+                        interrupted |= reopen(c, e);
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        // Replaces the channel c closed by an interrupt, unless the segment is closed, in which case
+        // e is thrown; clears the interrupt of this thread for the retry and returns whether it was set
+        private boolean reopen(FileChannel c, ClosedChannelException e) throws IOException {
+            boolean interrupted = Thread.interrupted();
+            synchronized (this) {
+                if (!open) {
+                    if (interrupted) Thread.currentThread().interrupt();
+                    throw e;
+                }
+                if (ch == c) ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return interrupted;
+        }
+
+        private synchronized void close() throws IOException {
+            open = false;
+            ch.close();
+        }
+    }
+
+    /**
+     * Opens the store in a directory, recovering the items logged in it, with writes that return once durable 
+     * @param setID the identification of the set
+     * @param dir the directory of the log, created if it does not exist
+     * @throws Exception if the log cannot be read or written
+     */
+    public LogStore(byte[] setID, File dir) throws Exception {this(setID, dir, true);}
+
+    /**
+     * Opens the store in a directory, recovering the items logged in it
+     * @param setID the identification of the set
+     * @param dir the directory of the log, created if it does not exist
+     * @param synchronous true if addIfNew and removeValue are to return only once their record is durable
+     * @throws Exception if the log cannot be read or written
+     */
+    public LogStore(byte[] setID, File dir, boolean synchronous) throws Exception {
+        this.setID       = setID;
+        this.dir         = dir;
+        this.synchronous = synchronous;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new Exception("Cannot create " + dir);
+        recover();
+        committer = new Thread() {
+            public void run() {
+                setName("Log Committer Thread");
+                while (!closed && failed == null) {
+                    try {
+                        force();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                }
+            }
+        };
+        committer.setDaemon(true);
+        committer.start();
+        timer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    synchronized (LogStore.this) {
+                        if (closed) return;
+                        if (compact()) checkpoint();   // not otherwise, it holds the store throughout
+                    }
+                } catch (IOException e) {   // a force of the log may have failed too
+                    fail(e);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, COMPACT, COMPACT);
+    }
+
+    public  byte[]   getSetID()                      {return setID;}
+    public  boolean  sameSet(byte[] otherID)         {return Arrays.equals(setID, otherID);}
+    public  int      cardinality()                   {return map.size();}
+    public  long[]   keySetArray(long from, long to) {return keys.range(from, to);}
+    public  int      count(long from, long to)       {return keys.count(from, to);}
+    public  int      syncArray(long from, long to, long[] evl) {return evals.get(from, to, evl);}
+
+    public ByteBuffer getBytes(long key) {
+        while (true) {
+            long loc = map.get(key);
+            if (loc == LongLongMap.ABSENT) return null;
+            try {
+                return read(loc).asReadOnlyBuffer();
+            } catch (IOException e) {   // compacted meanwhile, look it up again unless it did not move
+                if (loc == map.get(key)) {e.printStackTrace(); return null;}
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getValue(long key) {
+        ByteBuffer b = getBytes(key);
+        if (b == null) return null;
+        try {
+            return (V) ItemPDU.deserialize(b);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public V addIfNew(long key, V value) throws Exception {
+        if (!Reconciler.validKey(key)) throw new Exception("Key not in range");
+        if (value == null) throw new NullPointerException();
+        V old = getValue(key);
+        if (old == null) {
+            ByteBuffer b = add(key, ByteBuffer.wrap(ItemPDU.serialize(value)));
+            if (b != null) old = getValue(key);   // added concurrently
+        }
+        if((old != null) && !old.equals(value)) throw new Exception("Key collision");
+        return old;
+    }
+
+    public ByteBuffer addBytesIfNew(long key, ByteBuffer bytes) throws Exception {
+        if (!Reconciler.validKey(key)) throw new Exception("Key not in range");
+        ByteBuffer old = add(key, bytes);
+        if((old != null) && !ItemPDU.sameItem(old, bytes)) throw new Exception("Key collision");
+        return old;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V removeValue(long key) throws Exception {
+        ByteBuffer b;
+        long lsn;
+        synchronized (this) {
+            long loc = map.get(key);
+            if (loc == LongLongMap.ABSENT) return null;
+            b = read(loc);
+            evals.remove(key);   // first, the store is unchanged if it fails
+            try {
+                append(DEL, key, ByteBuffer.allocate(0));
+            } catch (IOException e) {
+                evals.add(key);
+                throw e;
+            }
+            lsn = written;
+            map.remove(key);
+            keys.remove(key);
+            segs.get((int) (loc >>> 32)).live -= HDR + b.remaining();
+        }
+        if (synchronous) await(lsn);
+        try {
+            return (V) ItemPDU.deserialize(b);
+        } catch (Exception e) {   // removed all the same, as getValue would not return it
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Stops the committer and the compaction, forces the log to disk, releasing the writers waiting
+     * on it, checkpoints the indices and closes its segments
+     * @throws Exception if the log cannot be forced or closed, or a force failed before
+     */
+    public void close() throws Exception {
+        timer.cancel();
+        synchronized (this) {closed = true;}
+        synchronized (commit) {commit.notifyAll();}
+        try {
+            committer.join();   // not interrupted, which would close the channel it forces
+            synchronized (this) {
+                if (failed != null) throw new IOException("Log not forced", failed);
+                active.force();
+                synchronized (commit) {
+                    forced = written;
+                    commit.notifyAll();
+                }
+                if (written != checkpointed) checkpoint();
+            }
+        } finally {
+            synchronized (commit) {   // the writers of records not forced throw rather than wait
+                if (forced < written && failed == null) failed = new IOException("Log closed");
+                commit.notifyAll();
+            }
+            synchronized (this) {for (Segment s : segs.values()) s.close();}
+        }
+    }
+
+    // Appends the PUT record of a key not yet mapped and waits for it if synchronous; 
+    // returns the serialized item of the key otherwise
+    private ByteBuffer add(long key, ByteBuffer bytes) throws Exception {
+        long lsn;
+        synchronized (this) {
+            ByteBuffer old = getBytes(key);
+            if (old != null) return old;
+            evals.add(key);   // first, the store is unchanged if it fails
+            try {
+                map.putIfAbsent(key, append(PUT, key, bytes));
+            } catch (IOException e) {
+                evals.remove(key);
+                throw e;
+            }
+            lsn = written;
+            keys.add(key);
+        }
+        if (synchronous) await(lsn);
+        return null;
+    }
+
+    // Appends a record to the open segment, starting a new one if full; returns its segment << 32 | offset
+    private long append(byte op, long key, ByteBuffer bytes) throws IOException {
+        if (closed) throw new IOException("Log closed");
+        if (failed != null) throw new IOException("Log not forced", failed);
+        if (active.size >= SEGMENT) {  // the committer only forces the open segment
+            try {
+                active.force();
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+            Segment s = new Segment(dir, active.id + 1);
+            segs.put(s.id, s);
+            active = s;
+        }
+        ByteBuffer r = ByteBuffer.allocate(HDR + bytes.remaining());
+        r.position(4);
+        r.put(op);
+        r.putLong(key);
+        r.putInt(bytes.remaining());
+        r.put(bytes.duplicate());
+        CRC32C crc = new CRC32C();
+        crc.update(r.array(), 4, r.capacity() - 4);
+        r.putInt(0, (int) crc.getValue());
+        r.flip();
+        long loc = active.id;
+        loc      = loc << 32 | active.size;
+        while (r.hasRemaining()) active.size += active.write(r, active.size);
+        if (op == PUT) active.live += r.capacity();
+        written += r.capacity();
+        synchronized (commit) {commit.notifyAll();}
+        return loc;
+    }
+
+    // Reads the serialized item of the PUT record at loc
+    private ByteBuffer read(long loc) throws IOException {
+        Segment s = segs.get((int) (loc >>> 32));
+        if (s == null) throw new IOException("Segment dropped");
+        long off  = loc & 0xffffffffL;
+        ByteBuffer h = ByteBuffer.allocate(4);
+        s.read(h, off + HDR - 4);
+        ByteBuffer b = ByteBuffer.allocate(h.getInt(0));
+        while (b.hasRemaining()) if (s.read(b, off + HDR + b.position()) < 0) throw new EOFException();
+        b.flip();
+        return b;
+    }
+
+    // Waits until the log is forced to disk up to position lsn; throws if a force failed or the log
+    // was closed before
+    private void await(long lsn) throws Exception {
+        synchronized (commit) {
+            while (forced < lsn) {
+                if (failed != null) throw new IOException("Log not forced", failed);
+                commit.wait();
+            }
+        }
+    }
+
+    // Records a failed force and releases the writers waiting on it to throw it; the committer stops
+    // and nothing more is appended, as a retried fsync may succeed for pages the kernel dropped
+    private void fail(IOException e) {
+        e.printStackTrace();
+        synchronized (commit) {
+            if (failed == null) failed = e;
+            commit.notifyAll();
+        }
+    }
+
+    // Waits for records to be appended and forces them to disk, releasing the writers waiting on them
+    private void force() throws IOException, InterruptedException {
+        synchronized (commit) {
+            while (forced == written && !closed) commit.wait();
+        }
+        if (closed) return;
+        long target;
+        Segment s;
+        synchronized (this) {
+            target = written;
+            s      = active;
+        }
+        s.force();
+        synchronized (commit) {
+            forced = target;
+            commit.notifyAll();
+        }
+    }
+
+    // Compacts the closed segments in which less than half the bytes are live; returns true if any was
+    private synchronized boolean compact() throws Exception {
+        if (closed) return false;
+        boolean dropped = false;
+        Integer[] ids = segs.keySet().toArray(new Integer[0]);
+        Arrays.sort(ids);
+        for (Integer id : ids) {
+            Segment s = segs.get(id);
+            if (s == active || 2 * s.live >= s.size) continue;
+            // a stream of its own, not the shared channel, which an interrupted reader may close
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(s.file), 1 << 20));
+            boolean oldest = id.equals(ids[0]);
+            try {
+                for (long off = 0; off < s.size; ) {
+                    in.readInt();
+                    byte op  = in.readByte();
+                    long key = in.readLong();
+                    byte[] b = new byte[in.readInt()];
+                    in.readFully(b);
+                    long loc = map.get(key);
+                    if (op == PUT && loc == ((long) s.id << 32 | off)) {
+                        map.replace(key, loc, append(PUT, key, ByteBuffer.wrap(b)));
+                    } else if (op == DEL && loc == LongLongMap.ABSENT && !oldest) {
+                        append(DEL, key, ByteBuffer.wrap(b));
+                    }
+                    off += HDR + b.length;
+                }
+            } finally {
+                in.close();
+            }
+            active.force();   // the copies are durable before the segment is deleted
+            segs.remove(id);
+            s.close();
+            if (!s.file.delete()) System.out.println("Cannot delete " + s.file);
+            dropped = true;
+        }
+        return dropped;
+    }
+
+    // Writes the keys, their locations and the EvalIndex, as of the end of the open segment forced
+    // to disk, to a new file mapped in memory, which then atomically replaces the last checkpoint
+    private synchronized void checkpoint() throws Exception {
+        active.force();
+        Integer[] ids = segs.keySet().toArray(new Integer[0]);
+        Arrays.sort(ids);
+        long[] k = keys.range(0, Reconciler.getDatamax());
+        long n   = 32 + 20L * ids.length + 16L * k.length + evals.bytes();
+        File tmp = new File(dir, INDEX + ".tmp");
+        FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, 
+                                          StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_WRITE, 0, n);
+            b.putLong(MAGIC);
+            b.putInt(active.id);
+            b.putLong(active.size);
+            b.putInt(ids.length);
+            for (Integer id : ids) {
+                Segment s = segs.get(id);
+                b.putInt(s.id);
+                b.putLong(s.size);
+                b.putLong(s.live);
+            }
+            b.putInt(k.length);
+            b.asLongBuffer().put(k);
+            b.position(b.position() + 8 * k.length);
+            LongBuffer l = b.asLongBuffer();
+            for (long x : k) l.put(map.get(x));
+            b.position(b.position() + 8 * k.length);
+            evals.save(b);
+            CRC32C crc = new CRC32C();
+            crc.update((ByteBuffer) b.duplicate().flip());
+            b.putInt((int) crc.getValue());
+            b.force();
+        } finally {
+            ch.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, INDEX).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        checkpointed = written;
+    }
+
+    // Loads the last checkpoint if it is intact and the segments on disk are those it was taken of,
+    // grown only in the segment then open; returns the segment << 32 | offset from which to replay
+    // the log, or -1 if there is no such checkpoint and nothing is loaded
+    private long restore() throws Exception {
+        File f = new File(dir, INDEX);
+        if (!f.isFile()) return -1;
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            long n = ch.size();
+            if (n < 32) return -1;
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, n);
+            CRC32C crc = new CRC32C();
+            crc.update((ByteBuffer) b.duplicate().limit((int) n - 4));
+            if (b.getInt((int) n - 4) != (int) crc.getValue() || b.getLong() != MAGIC) return -1;
+            int last  = b.getInt();
+            long size = b.getLong();
+            int ns    = b.getInt();
+            int[] ids = new int[ns];
+            long[] lv = new long[ns];
+            for (int i = 0; i < ns; i++) {
+                ids[i]    = b.getInt();
+                Segment s = segs.get(ids[i]);
+                long sz   = b.getLong();
+                lv[i]     = b.getLong();
+                if (s == null || (ids[i] == last ? s.size < sz : s.size != sz)) return -1;
+            }
+            for (Segment s : segs.values()) if (s.id <= last && Arrays.binarySearch(ids, s.id) < 0) return -1;
+            int nk    = b.getInt();
+            LongBuffer k = b.asLongBuffer();   // the keys, followed by their locations
+            b.position(b.position() + 16 * nk);
+            if (!evals.load(b)) return -1;
+            for (int i = 0; i < nk; i++) map.putIfAbsent(k.get(i), k.get(nk + i));
+            long[] a = new long[nk];
+            k.get(a);
+            keys.load(a);
+            for (int i = 0; i < ns; i++) segs.get(ids[i]).live = lv[i];
+            return (long) last << 32 | size;
+        } finally {
+            ch.close();
+        }
+    }
+
+    // Loads the last checkpoint and replays the log after it, or else replays all the segments in 
+    // order and indexes the keys; a torn record and what follows it are truncated
+    private void recover() throws Exception {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        int last = 0;
+        for (File f : files) {
+            String n = f.getName();
+            if (!n.matches("[0-9a-f]{8}\\.log")) continue;
+            Segment s = new Segment(dir, Integer.parseInt(n.substring(0, 8), 16));
+            segs.put(s.id, s);
+            last = s.id;
+        }
+        long from = restore();
+        int  seg  = (int) (from >> 32);
+        long off  = from & 0xffffffffL;
+        Integer[] ids = segs.keySet().toArray(new Integer[0]);
+        Arrays.sort(ids);
+        for (Integer id : ids) if (id >= seg) replay(segs.get(id), id == seg ? off : 0, from >= 0);
+        active = segs.get(last);
+        if (active == null) {
+            active = new Segment(dir, 0);
+            segs.put(active.id, active);
+        }
+        if (from < 0) {
+            for (long k : keys.range(0, Reconciler.getDatamax())) evals.add(k);
+        } else if (active.id == seg && active.size == off) {
+            checkpointed = 0;   // no tail, the checkpoint is current
+        }
+        System.out.println("Recovered " + map.size() + " items from " + segs.size() + " segments" + (from < 0 ? "" : " and checkpoint"));
+    }
+
+    // Replays the records of a segment from offset off, updating the EvalIndex too if evaluate
+    private void replay(Segment s, long off, boolean evaluate) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(s.ch.position(off)), 1 << 20));
+        CRC32C crc = new CRC32C();
+        try {
+            while (off < s.size) {
+                int sum  = in.readInt();
+                byte op  = in.readByte();
+                long key = in.readLong();
+                int len  = in.readInt();
+                if (len < 0 || off + HDR + len > s.size || (op != PUT && op != DEL)) break;
+                byte[] b = new byte[len];
+                in.readFully(b);
+                ByteBuffer h = ByteBuffer.allocate(HDR - 4).put(op).putLong(key).putInt(len);
+                crc.reset();
+                crc.update(h.array());
+                crc.update(b);
+                if (sum != (int) crc.getValue()) break;
+                long old = map.remove(key);
+                if (old != LongLongMap.ABSENT) {
+                    Segment o = segs.get((int) (old >>> 32));
+                    o.live -= HDR + read(old).remaining();
+                    keys.remove(key);
+                    if (evaluate) evals.remove(key);
+                }
+                if (op == PUT) {
+                    map.putIfAbsent(key, (long) s.id << 32 | off);
+                    keys.add(key);
+                    if (evaluate) evals.add(key);
+                    s.live += HDR + len;
+                }
+                off += HDR + len;
+            }
+        } catch (EOFException e) {
+        }
+        if (off < s.size) {
+            System.out.println("Truncating " + s.file + " at " + off + " of " + s.size);
+            s.ch.truncate(off);
+            s.size = off;
+        }
+    }
+
+    // Checks that the store holds exactly the items of ref
+    private static void check(LogStore<String> s, Map<Long, String> ref, String what) throws Exception {
+        if (s.cardinality() != ref.size() || s.count(0, Reconciler.getDatamax()) != ref.size()) throw new Exception(what + ": cardinality");
+        for (Map.Entry<Long, String> e : ref.entrySet()) if (!e.getValue().equals(s.getValue(e.getKey()))) throw new Exception(what + ": key " + e.getKey());
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing LogStore restarts");
+        File dir = Files.createTempDirectory("logstore").toFile();
+        byte[] id = "LogStore".getBytes();
+        Random r  = new Random(5);
+        HashMap<Long, String> ref = new HashMap<Long, String>();
+        try {
+            LogStore<String> s = new LogStore<String>(id, dir, true);
+            for (int i = 0; i < 5000; i++) {
+                long k = r.nextInt(3000);
+                String v = "item " + k;
+                if (r.nextInt(4) > 0) {
+                    s.addIfNew(k, v);
+                    ref.put(k, v);
+                } else if (ref.remove(k) == null ? s.removeValue(k) != null : !v.equals(s.removeValue(k))) {
+                    throw new Exception("Remove of " + k);
+                }
+            }
+            s.addBytesIfNew(7777, ByteBuffer.wrap(new byte[] {1, 2, 3}));   // not an item
+            if (s.removeValue(7777) != null || s.getBytes(7777) != null) throw new Exception("Remove of bytes not an item");
+            check(s, ref, "Before restart");
+            s.addIfNew(9999, "torn");   // the last record, to be torn
+            s.close();
+            try {
+                s.addIfNew(8888, "closed");
+                throw new Exception("Add after close");
+            } catch (IOException e) {
+            }
+
+            File last = null;
+            for (File f : dir.listFiles()) if (f.getName().endsWith(".log") && (last == null || f.compareTo(last) > 0)) last = f;
+            FileChannel ch = FileChannel.open(last.toPath(), StandardOpenOption.WRITE);
+            ch.truncate(ch.size() - 3);
+            ch.close();
+            s = new LogStore<String>(id, dir, true);
+            check(s, ref, "Restart after a torn tail");
+
+            char[] c = new char[1 << 20];
+            Arrays.fill(c, 'x');
+            String big = new String(c);
+            for (long k = 100000; k < 100070; k++) {   // more than a segment
+                s.addIfNew(k, big + k);
+                ref.put(k, big + k);
+            }
+            for (long k = 100000; k < 100060; k++) if (k % 10 != 0 && !(big + k).equals(s.removeValue(k))) throw new Exception("Remove of " + k);
+            for (long k = 100000; k < 100060; k++) if (k % 10 != 0) ref.remove(k);
+            synchronized (s) {   // as the timer does
+                if (!s.compact()) throw new Exception("No segment compacted");
+                s.checkpoint();
+            }
+            LogStore<String> t = new LogStore<String>(id, dir, false);   // as if s crashed
+            check(t, ref, "Restart after a compaction");
+            if (t.checkpointed != 0) throw new Exception("Checkpoint after a compaction not loaded");
+            t.close();
+            s.close();
+        } finally {
+            for (File f : dir.listFiles()) f.delete();
+            dir.delete();
+        }
+        System.out.println("LogStore ok");
+    }
+}
@@ -0,0 +1,340 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * A sorted set of primitive long keys, a B+ tree whose inner nodes count the keys under each child,
+ * so that the keys in a range are counted in O(log n) and copied out in O(log n + k) without boxing.
+ * The leaves are linked in ascending order for range copies. A node is split when full; a removed 
+ * key only leaves room in its leaf, since the keys routed to a node remain within its bounds. Reads
+ * proceed concurrently under a read lock, and writes are serialized by the write lock.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+final class LongIndex {
+    private static final int M = 128;   // keys in a leaf, children of an inner node, at most
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Node root = new Node(true);
+
+    private static final class Node {
+        private final long[] keys   = new long[M];   // sorted keys of a leaf, or the least key routed to each child
+        private final Node[] kids;                   // null for a leaf
+        private final int[]  counts;                 // keys under each child
+        private int          n      = 0;             // keys of a leaf or children of an inner node
+        private int          total  = 0;             // keys under the node
+        private Node         next   = null;          // the next leaf
+
+        private Node(boolean leaf) {
+            kids   = leaf ? null : new Node[M];
+            counts = leaf ? null : new int[M];
+        }
+
+        private boolean isLeaf() {return kids == null;}
+
+        // Index of the first key of a leaf not less than k
+        private int lower(long k) {
+            int lo = 0, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < k) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        // Index of the child of an inner node to which k is routed
+        private int route(long k) {
+            int lo = 1, hi = n;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= k) lo = mid + 1; else hi = mid;
+            }
+            return lo - 1;
+        }
+    }
+
+    /**
+     * Adds a key
+     * @param k the key
+     * @return true if the key was added, false if it is already in the index
+     */
+    boolean add(long k) {
+        lock.writeLock().lock();
+        try {
+            if (find(k)) return false;
+            Node s = insert(root, k);
+            if (s != null) {  // grow a level
+                Node r      = new Node(false);
+                r.keys[0]   = root.keys[0];
+                r.keys[1]   = s.keys[0];
+                r.kids[0]   = root;
+                r.kids[1]   = s;
+                r.counts[0] = root.total;
+                r.counts[1] = s.total;
+                r.n         = 2;
+                r.total     = root.total + s.total;
+                root        = r;
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key
+     * @param k the key
+     * @return true if the key was removed, false if it was not in the index
+     */
+    boolean remove(long k) {
+        lock.writeLock().lock();
+        try {
+            if (!find(k)) return false;
+            Node x = root;
+            while (!x.isLeaf()) {
+                int i = x.route(k);
+                x.counts[i]--;
+                x.total--;
+                x = x.kids[i];
+            }
+            int i = x.lower(k);
+            System.arraycopy(x.keys, i + 1, x.keys, i, x.n - i - 1);
+            x.n--;
+            x.total--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of the index by the given keys, building the leaves and then each 
+     * level of inner nodes in O(n), with the nodes 3/4 full to leave room for additions
+     * @param k the keys in ascending order, without duplicates
+     */
+    void load(long[] k) {
+        int fill = 3 * M / 4;
+        List<Node> level = new ArrayList<Node>();
+        Node prev = null;
+        for (int i = 0; i < k.length || level.isEmpty(); i += fill) {
+            Node x  = new Node(true);
+            x.n     = k.length - i < fill ? k.length - i : fill;
+            x.total = x.n;
+            System.arraycopy(k, i, x.keys, 0, x.n);
+            if (prev != null) prev.next = x;
+            prev    = x;
+            level.add(x);
+        }
+        while (level.size() > 1) {
+            List<Node> up = new ArrayList<Node>();
+            for (int i = 0; i < level.size(); i += fill) {
+                Node p = new Node(false);
+                for (int j = i; j < i + fill && j < level.size(); j++) {
+                    Node c         = level.get(j);
+                    p.keys[p.n]    = c.keys[0];
+                    p.kids[p.n]    = c;
+                    p.counts[p.n]  = c.total;
+                    p.total       += c.total;
+                    p.n++;
+                }
+                up.add(p);
+            }
+            level = up;
+        }
+        lock.writeLock().lock();
+        try {
+            root = level.get(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of keys in the index
+     * @return the number of keys
+     */
+    int size() {
+        lock.readLock().lock();
+        try {
+            return root.total;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the keys in a range, in O(log n)
+     * @param from the minimum (inclusive) key of the range
+     * @param to the maximum (exclusive) key of the range
+     * @return the number of keys in [from,to)
+     */
+    int count(long from, long to) {
+        if (to <= from) return 0;
+        lock.readLock().lock();
+        try {
+            return rank(to) - rank(from);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the keys in a range in ascending order, in O(log n + k) for k keys
+     * @param from the minimum (inclusive) key of the range
+     * @param to the maximum (exclusive) key of the range
+     * @return the keys in [from,to)
+     */
+    long[] range(long from, long to) {
+        if (to <= from) return new long[0];
+        lock.readLock().lock();
+        try {
+            long[] r = new long[rank(to) - rank(from)];
+            Node x   = root;
+            while (!x.isLeaf()) x = x.kids[x.route(from)];
+            int i    = x.lower(from);
+            for (int j = 0; j < r.length; x = x.next, i = 0) {
+                int c = x.n - i < r.length - j ? x.n - i : r.length - j;
+                System.arraycopy(x.keys, i, r, j, c);
+                j += c;
+            }
+            return r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Number of keys less than k
+    private int rank(long k) {
+        int r  = 0;
+        Node x = root;
+        while (!x.isLeaf()) {
+            int i = x.route(k);
+            for (int j = 0; j < i; j++) r += x.counts[j];
+            x = x.kids[i];
+        }
+        return r + x.lower(k);
+    }
+
+    private boolean find(long k) {
+        Node x = root;
+        while (!x.isLeaf()) x = x.kids[x.route(k)];
+        int i = x.lower(k);
+        return i < x.n && x.keys[i] == k;
+    }
+
+    // Inserts a new key under x, returns the new right sibling of x if x was split, null otherwise
+    private static Node insert(Node x, long k) {
+        if (x.isLeaf()) {
+            int i = x.lower(k);
+            System.arraycopy(x.keys, i, x.keys, i + 1, x.n - i);
+            x.keys[i] = k;
+            x.n++;
+            x.total++;
+            if (x.n < M) return null;
+            Node s = new Node(true);
+            s.n    = M / 2;
+            System.arraycopy(x.keys, M - s.n, s.keys, 0, s.n);
+            x.n    = M - s.n;
+            s.total = s.n;
+            x.total = x.n;
+            s.next = x.next;
+            x.next = s;
+            return s;
+        }
+        int i  = x.route(k);
+        Node c = insert(x.kids[i], k);
+        x.counts[i]++;
+        x.total++;
+        if (c == null) return null;
+        System.arraycopy(x.keys, i + 1, x.keys, i + 2, x.n - i - 1);
+        System.arraycopy(x.kids, i + 1, x.kids, i + 2, x.n - i - 1);
+        System.arraycopy(x.counts, i + 1, x.counts, i + 2, x.n - i - 1);
+        x.keys[i + 1]   = c.keys[0];
+        x.kids[i + 1]   = c;
+        x.counts[i]     = x.kids[i].total;
+        x.counts[i + 1] = c.total;
+        x.n++;
+        if (x.n < M) return null;
+        Node s = new Node(false);
+        s.n    = M / 2;
+        int h  = M - s.n;
+        System.arraycopy(x.keys, h, s.keys, 0, s.n);
+        System.arraycopy(x.kids, h, s.kids, 0, s.n);
+        System.arraycopy(x.counts, h, s.counts, 0, s.n);
+        for (int j = h; j < M; j++) x.kids[j] = null;
+        x.n    = h;
+        for (int j = 0; j < s.n; j++) s.total += s.counts[j];
+        x.total -= s.total;
+        return s;
+    }
+
+    /**
+     * The main method tests bulk loads of sizes around those of a node and of two levels, each 
+     * followed by random additions and removals, against a TreeSet with count and range
+     * @param args ignored
+     * @throws Exception if the index and the TreeSet disagree
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing LongIndex against a TreeSet");
+        Random r = new Random(3);
+        int fill = 3 * M / 4;
+        for (int n : new int[] {0, 1, fill - 1, fill, fill + 1, 5000, fill * fill + 1, 200000}) {
+            TreeSet<Long> t = new TreeSet<Long>();
+            while (t.size() < n) t.add((long) r.nextInt(1 << 30));
+            long[] a = new long[n];
+            int i    = 0;
+            for (long k : t) a[i++] = k;
+            LongIndex x = new LongIndex();
+            x.add(5);   // replaced by the load
+            x.load(a);
+            for (int j = 0; j < 50000; j++) {
+                long k = r.nextInt(1 << 30);
+                if (j % 4 == 0 && !t.isEmpty()) k = t.ceiling(k) == null ? t.first() : t.ceiling(k);   // present keys too
+                if (r.nextBoolean() ? x.add(k) != t.add(k) : x.remove(k) != t.remove(k)) throw new Exception("Load of " + n + ": add or remove " + k);
+                if (j % 100 != 0) continue;
+                long from = r.nextInt(1 << 30);
+                long to   = from + r.nextInt(1 << 24);
+                SortedSet<Long> e = t.subSet(from, to);
+                long[] g = x.range(from, to);
+                if (x.count(from, to) != e.size() || g.length != e.size()) throw new Exception("Load of " + n + ": count [" + from + "," + to + ")");
+                int q = 0;
+                for (long v : e) if (g[q++] != v) throw new Exception("Load of " + n + ": range [" + from + "," + to + ")");
+            }
+            if (x.size() != t.size() || x.range(Long.MIN_VALUE, Long.MAX_VALUE).length != t.size()) throw new Exception("Load of " + n + ": size");
+        }
+        System.out.println("LongIndex ok");
+    }
+}
@@ -0,0 +1,277 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * A LongMap whose values are primitive longs too, e.g., the locations of records in a store, so that
+ * an entry costs two longs of its table and no object. The value ABSENT is reserved to mean that a
+ * key is not bound, in place of null. Writes lock the segment and reads take no lock, as in LongMap.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+final class LongLongMap {
+    static final long ABSENT = -1;   // not a value, returned for a key that is not bound
+
+    private static final VarHandle SLOTS   = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int  SEGMENTS     = 64;
+    private static final int  MINCAP       = 16;
+    private static final long FREE         = 0;    // key of an unused slot, key 0 itself is kept in zero
+
+    private final Segment[]   segs = new Segment[SEGMENTS];
+    private volatile long     zero = ABSENT;       // value of key 0
+
+    private static final class Table {
+        private final long[] keys;
+        private final long[] vals;
+        private final int    mask;
+        private Table(int cap) {keys = new long[cap]; vals = new long[cap]; mask = cap - 1;}
+    }
+
+    private static final class Segment {
+        private volatile Table t    = new Table(MINCAP);
+        private volatile int   size = 0;   // keys with a value
+        private int            used = 0;   // slots with a key, including removed ones
+    }
+
+    LongLongMap() {for (int i = 0; i < SEGMENTS; i++) segs[i] = new Segment();}
+
+    private static long mix(long k) {
+        k = (k ^ (k >>> 33)) * 0xff51afd7ed558ccdL;
+        k = (k ^ (k >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return k ^ (k >>> 33);
+    }
+
+    private Segment segment(long h) {return segs[(int) (h >>> 58)];}
+
+    /**
+     * Returns the value of a key
+     * @param key the key
+     * @return the value, ABSENT if the key is not in the map
+     */
+    long get(long key) {
+        if (key == FREE) return zero;
+        long h  = mix(key);
+        Table t = segment(h).t;
+        for (int i = (int) h & t.mask; ; i = (i + 1) & t.mask) {
+            long k = (long) SLOTS.getAcquire(t.keys, i);
+            if (k == key) return (long) SLOTS.getAcquire(t.vals, i);
+            if (k == FREE) return ABSENT;
+        }
+    }
+
+    /**
+     * Binds the key to the value unless it is already bound
+     * @param key the key
+     * @param value the value, not ABSENT
+     * @return the value the key is bound to, ABSENT if it was not and is now bound to value
+     */
+    long putIfAbsent(long key, long value) {
+        if (value == ABSENT) throw new IllegalArgumentException();
+        if (key == FREE) {
+            synchronized (this) {
+                long old = zero;
+                if (old == ABSENT) zero = value;
+                return old;
+            }
+        }
+        long h    = mix(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.t;
+            int i   = (int) h & t.mask;
+            for (long k; (k = t.keys[i]) != FREE; i = (i + 1) & t.mask) {
+                if (k != key) continue;
+                long old = t.vals[i];
+                if (old == ABSENT) {SLOTS.setRelease(t.vals, i, value); s.size++;}
+                return old;
+            }
+            if (4 * (s.used + 1) > 3 * t.keys.length) {   // keep a free slot to end every probe
+                rebuild(s);
+                t = s.t;
+                for (i = (int) h & t.mask; t.keys[i] != FREE; i = (i + 1) & t.mask);
+            }
+            SLOTS.setRelease(t.vals, i, value);
+            SLOTS.setRelease(t.keys, i, key);
+            s.used++;
+            s.size++;
+            return ABSENT;
+        }
+    }
+
+    /**
+     * Removes the key
+     * @param key the key
+     * @return the value the key was bound to, ABSENT if it was not in the map
+     */
+    long remove(long key) {
+        if (key == FREE) {
+            synchronized (this) {
+                long old = zero;
+                zero = ABSENT;
+                return old;
+            }
+        }
+        long h    = mix(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.t;
+            for (int i = (int) h & t.mask; t.keys[i] != FREE; i = (i + 1) & t.mask) {
+                if (t.keys[i] != key) continue;
+                long old = t.vals[i];
+                if (old != ABSENT) {SLOTS.setRelease(t.vals, i, ABSENT); s.size--;}
+                return old;
+            }
+            return ABSENT;
+        }
+    }
+
+    /**
+     * Binds the key to a new value if it is bound to the given one
+     * @param key the key
+     * @param old the value
+     * @param value the new value, not ABSENT
+     * @return true if the value was replaced
+     */
+    boolean replace(long key, long old, long value) {
+        if (value == ABSENT) throw new IllegalArgumentException();
+        if (key == FREE) {
+            synchronized (this) {
+                if (zero != old || old == ABSENT) return false;
+                zero = value;
+                return true;
+            }
+        }
+        long h    = mix(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.t;
+            for (int i = (int) h & t.mask; t.keys[i] != FREE; i = (i + 1) & t.mask) {
+                if (t.keys[i] != key) continue;
+                if (t.vals[i] != old || old == ABSENT) return false;
+                SLOTS.setRelease(t.vals, i, value);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Replaces the table of a locked segment by one that is at most half full, without the removed keys
+    private static void rebuild(Segment s) {
+        Table t  = s.t;
+        int cap  = MINCAP;
+        while (cap < 2 * (s.size + 1)) cap <<= 1;
+        Table n  = new Table(cap);
+        for (int j = 0; j < t.keys.length; j++) {
+            if (t.keys[j] == FREE || t.vals[j] == ABSENT) continue;
+            int i = (int) mix(t.keys[j]) & n.mask;
+            while (n.keys[i] != FREE) i = (i + 1) & n.mask;
+            n.keys[i] = t.keys[j];
+            n.vals[i] = t.vals[j];
+        }
+        s.used = s.size;
+        s.t    = n;   // publishes the new table
+    }
+
+    /**
+     * Returns the number of keys in the map
+     * @return the number of keys, exact if there are no concurrent writes
+     */
+    int size() {
+        int n = zero == ABSENT ? 0 : 1;
+        for (Segment s : segs) n += s.size;
+        return n;
+    }
+
+    /**
+     * The main method tests concurrent writers of keys of their own against a HashMap per writer,
+     * while a reader checks that every value found is that of its key
+     * @param args ignored
+     * @throws Exception if the reader or the final contents disagree
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing 4 writers and a reader on a LongLongMap");
+        final LongLongMap m  = new LongLongMap();
+        final int writers    = 4;
+        final int keys       = 20000;   // of each writer
+        final String[] error = new String[1];
+        final HashMap<Long, Long> ref = new HashMap<Long, Long>();
+        final Thread[] w = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            final int id = t;
+            w[t] = new Thread() {
+                public void run() {
+                    Random r = new Random(id);
+                    HashMap<Long, Long> mine = new HashMap<Long, Long>();
+                    for (int i = 0; i < 500000; i++) {
+                        long key = (long) r.nextInt(keys) * writers + id;   // key 0 included
+                        Long had = mine.get(key);
+                        long old = had == null ? ABSENT : had;
+                        int op   = r.nextInt(3);
+                        if (op == 0) {
+                            if (m.remove(key) != old) error[0] = "remove " + key;
+                            mine.remove(key);
+                        } else if (op == 1 || had == null) {
+                            if (m.putIfAbsent(key, key << 2) != old) error[0] = "putIfAbsent " + key;
+                            if (had == null) mine.put(key, key << 2);
+                        } else {
+                            long v = old ^ 1;   // the value of a key alternates, ending in 0 or 1
+                            if (!m.replace(key, old, v) || m.replace(key, old, v)) error[0] = "replace " + key;
+                            mine.put(key, v);
+                        }
+                    }
+                    synchronized (ref) {ref.putAll(mine);}
+                }
+            };
+        }
+        Thread rd = new Thread() {
+            public void run() {
+                Random r = new Random(100);
+                while (w[0].isAlive() || w[writers - 1].isAlive()) {
+                    long key = r.nextInt(keys * writers);
+                    long v   = m.get(key);
+                    if (v != ABSENT && (v >> 2) != key) error[0] = "get " + key + " = " + v;
+                }
+            }
+        };
+        rd.start();
+        for (Thread t : w) t.start();
+        for (Thread t : w) t.join();
+        rd.join();
+        if (error[0] != null) throw new Exception("LongLongMap " + error[0]);
+        if (m.size() != ref.size()) throw new Exception("LongLongMap size " + m.size() + " expected " + ref.size());
+        for (Long k : ref.keySet()) if (m.get(k) != ref.get(k)) throw new Exception("LongLongMap key " + k);
+        System.out.println("LongLongMap ok, " + m.size() + " keys");
+    }
+}
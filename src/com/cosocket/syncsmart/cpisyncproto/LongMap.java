@@ -0,0 +1,315 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * A concurrent hash map from primitive long keys to values, without boxing the keys or allocating 
+ * a node per entry. The keys are split over segments by their hash, and each segment is an open 
+ * addressing table with linear probing in a pair of arrays, about 16 to 32 bytes per entry instead 
+ * of the 50 or more of a ConcurrentHashMap of Long keys. Writes lock the segment; reads take no lock 
+ * and allocate nothing: a value is published before its key, so that a reader finding the key also 
+ * finds the value, and a removed key keeps its slot with a null value until the table is rebuilt. 
+ * Null values are not permitted.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ * @param <V> type of the values
+ */
+final class LongMap<V> {
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final int  SEGMENTS  = 64;   // power of two, writes to different segments proceed concurrently
+    private static final int  MINCAP    = 16;
+    private static final long FREE      = 0;    // key of an unused slot, key 0 itself is kept in zero
+
+    private final Segment[]   segs = new Segment[SEGMENTS];
+    private volatile Object   zero = null;      // value of key 0
+
+    // A table is replaced, never resized in place, so that readers always probe a consistent one
+    private static final class Table {
+        private final long[]   keys;
+        private final Object[] vals;
+        private final int      mask;
+        private Table(int cap) {keys = new long[cap]; vals = new Object[cap]; mask = cap - 1;}
+    }
+
+    private static final class Segment {
+        private volatile Table t    = new Table(MINCAP);
+        private volatile int   size = 0;   // keys with a value
+        private int            used = 0;   // slots with a key, including removed ones
+    }
+
+    LongMap() {for (int i = 0; i < SEGMENTS; i++) segs[i] = new Segment();}
+
+    // Spreads the key over all bits, the high bits choose the segment and the low bits the slot
+    private static long mix(long k) {
+        k = (k ^ (k >>> 33)) * 0xff51afd7ed558ccdL;
+        k = (k ^ (k >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return k ^ (k >>> 33);
+    }
+
+    private Segment segment(long h) {return segs[(int) (h >>> 58)];}
+
+    /**
+     * Returns the monitor that writes of a key hold, so that a caller holding it may update 
+     * other structures atomically with the binding of the key
+     * @param key the key
+     * @return the lock of the segment of the key
+     */
+    Object lock(long key) {return key == FREE ? this : segment(mix(key));}
+
+    /**
+     * Returns the value of a key
+     * @param key the key
+     * @return the value, null if the key is not in the map
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (key == FREE) return (V) zero;
+        long h  = mix(key);
+        Table t = segment(h).t;
+        for (int i = (int) h & t.mask; ; i = (i + 1) & t.mask) {
+            long k = (long) KEYS.getAcquire(t.keys, i);
+            if (k == key) return (V) VALS.getAcquire(t.vals, i);
+            if (k == FREE) return null;
+        }
+    }
+
+    /**
+     * Binds the key to the value unless it is already bound
+     * @param key the key
+     * @param value the value, not null
+     * @return the value the key is bound to, null if it was not and is now bound to value
+     */
+    @SuppressWarnings("unchecked")
+    V putIfAbsent(long key, V value) {
+        if (value == null) throw new NullPointerException();
+        if (key == FREE) {
+            synchronized (this) {
+                Object old = zero;
+                if (old == null) zero = value;
+                return (V) old;
+            }
+        }
+        long h    = mix(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.t;
+            int i   = (int) h & t.mask;
+            for (long k; (k = t.keys[i]) != FREE; i = (i + 1) & t.mask) {
+                if (k != key) continue;
+                Object old = t.vals[i];
+                if (old == null) {VALS.setRelease(t.vals, i, value); s.size++;}
+                return (V) old;
+            }
+            if (4 * (s.used + 1) > 3 * t.keys.length) {   // keep a free slot to end every probe
+                rebuild(s);
+                t = s.t;
+                for (i = (int) h & t.mask; t.keys[i] != FREE; i = (i + 1) & t.mask);
+            }
+            VALS.setRelease(t.vals, i, value);
+            KEYS.setRelease(t.keys, i, key);
+            s.used++;
+            s.size++;
+            return null;
+        }
+    }
+
+    /**
+     * Removes the key
+     * @param key the key
+     * @return the value the key was bound to, null if it was not in the map
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        if (key == FREE) {
+            synchronized (this) {
+                Object old = zero;
+                zero = null;
+                return (V) old;
+            }
+        }
+        long h    = mix(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.t;
+            for (int i = (int) h & t.mask; t.keys[i] != FREE; i = (i + 1) & t.mask) {
+                if (t.keys[i] != key) continue;
+                Object old = t.vals[i];
+                if (old != null) {VALS.setRelease(t.vals, i, null); s.size--;}
+                return (V) old;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Binds the key to a new value if it is bound to the given one
+     * @param key the key
+     * @param old the value, compared by identity
+     * @param value the new value, not null
+     * @return true if the value was replaced
+     */
+    boolean replace(long key, V old, V value) {
+        if (value == null) throw new NullPointerException();
+        if (key == FREE) {
+            synchronized (this) {
+                if (zero != old || old == null) return false;
+                zero = value;
+                return true;
+            }
+        }
+        long h    = mix(key);
+        Segment s = segment(h);
+        synchronized (s) {
+            Table t = s.t;
+            for (int i = (int) h & t.mask; t.keys[i] != FREE; i = (i + 1) & t.mask) {
+                if (t.keys[i] != key) continue;
+                if (t.vals[i] != old || old == null) return false;
+                VALS.setRelease(t.vals, i, value);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    // Replaces the table of a locked segment by one that is at most half full, without the removed keys
+    private static void rebuild(Segment s) {
+        Table t  = s.t;
+        int cap  = MINCAP;
+        while (cap < 2 * (s.size + 1)) cap <<= 1;
+        Table n  = new Table(cap);
+        for (int j = 0; j < t.keys.length; j++) {
+            if (t.keys[j] == FREE || t.vals[j] == null) continue;
+            int i = (int) mix(t.keys[j]) & n.mask;
+            while (n.keys[i] != FREE) i = (i + 1) & n.mask;
+            n.keys[i] = t.keys[j];
+            n.vals[i] = t.vals[j];
+        }
+        s.used = s.size;
+        s.t    = n;   // publishes the new table
+    }
+
+    /**
+     * Returns the number of keys in the map
+     * @return the number of keys, exact if there are no concurrent writes
+     */
+    int size() {
+        int n = zero == null ? 0 : 1;
+        for (Segment s : segs) n += s.size;
+        return n;
+    }
+
+    /**
+     * Returns the keys in the map in no particular order, a snapshot of each segment in turn
+     * @return an array of the keys
+     */
+    long[] keys() {
+        long[] r = new long[size() + 16];
+        int n    = 0;
+        if (zero != null) r[n++] = FREE;
+        for (Segment s : segs) {
+            Table t = s.t;
+            for (int i = 0; i < t.keys.length; i++) {
+                long k = (long) KEYS.getAcquire(t.keys, i);
+                if (k == FREE || VALS.getAcquire(t.vals, i) == null) continue;
+                if (n == r.length) r = Arrays.copyOf(r, 2 * n);
+                r[n++] = k;
+            }
+        }
+        return n == r.length ? r : Arrays.copyOf(r, n);
+    }
+
+    /**
+     * The main method tests concurrent writers, each putting and removing keys of its own so that 
+     * segments are rebuilt many times, against a HashMap per writer, while readers check that every 
+     * value found is that of its key
+     * @param args ignored
+     * @throws Exception if a reader or the final contents disagree
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing 4 writers and 2 readers on a LongMap");
+        final LongMap<Long> m = new LongMap<Long>();
+        final int writers     = 4;
+        final int keys        = 20000;   // of each writer
+        final String[] error  = new String[1];
+        final HashMap<Long, Long> ref = new HashMap<Long, Long>();
+        final Thread[] w = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            final int id = t;
+            w[t] = new Thread() {
+                public void run() {
+                    Random r = new Random(id);
+                    HashMap<Long, Long> mine = new HashMap<Long, Long>();
+                    for (int i = 0; i < 500000; i++) {
+                        long key = (long) r.nextInt(keys) * writers + id;   // key 0 included
+                        if (r.nextInt(3) == 0) {
+                            if (!eq(m.remove(key), mine.remove(key))) error[0] = "remove " + key;
+                        } else {
+                            Long v = m.putIfAbsent(key, ~key);
+                            if (!eq(v, mine.containsKey(key) ? ~key : null)) error[0] = "putIfAbsent " + key;
+                            mine.put(key, ~key);
+                        }
+                    }
+                    synchronized (ref) {ref.putAll(mine);}
+                }
+            };
+        }
+        Thread[] rd = new Thread[2];
+        for (int t = 0; t < rd.length; t++) {
+            final int id = t;
+            rd[t] = new Thread() {
+                public void run() {
+                    Random r = new Random(100 + id);
+                    while (w[0].isAlive() || w[writers - 1].isAlive()) {
+                        long key = r.nextInt(keys * writers);
+                        Long v   = m.get(key);
+                        if (v != null && v != ~key) error[0] = "get " + key + " = " + v;
+                    }
+                }
+            };
+        }
+        for (Thread t : rd) t.start();
+        for (Thread t : w) t.start();
+        for (Thread t : w) t.join();
+        for (Thread t : rd) t.join();
+        if (error[0] != null) throw new Exception("LongMap " + error[0]);
+        if (m.size() != ref.size() || m.keys().length != ref.size()) throw new Exception("LongMap size " + m.size() + " expected " + ref.size());
+        for (long k : m.keys()) if (!eq(m.get(k), ref.get(k))) throw new Exception("LongMap key " + k);
+        for (Long k : ref.keySet()) if (!eq(m.get(k), ref.get(k))) throw new Exception("LongMap missing " + k);
+        System.out.println("LongMap ok, " + m.size() + " keys");
+    }
+
+    private static boolean eq(Long a, Long b) {return a == null ? b == null : a.equals(b);}
+}
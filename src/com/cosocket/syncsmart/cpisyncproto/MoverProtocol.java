@@ -1,11 +1,14 @@
 package com.cosocket.syncsmart.cpisyncproto;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import com.cosocket.syncsmart.cpisyncproto.ItemPDU;
 import com.cosocket.syncsmart.cpisyncproto.MoveSet;
 import com.cosocket.syncsmart.cpisyncproto.MoverInterface;
+import com.cosocket.syncsmart.cpisyncproto.SerialStoreInterface;
 import com.cosocket.syncsmart.cpisyncproto.StoreInterface;
 /*
 Copyright (c) 2013, Cosocket LLC
@@ -51,11 +54,10 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * @param <V> type of items in set to be reconciled, must be Serializable
  */
 public class MoverProtocol<V extends Serializable> implements MoverInterface<V> {
-    private static final int INQSZ = 150;
+    private static final int INQSZ = 2048;
     private static final int OUTQSZ = 150;
-    private static final int MVQSZ = 20;
     private static final long OFFERMS = 50L;
-    private ArrayBlockingQueue<MoveSet> pqin  = new ArrayBlockingQueue<MoveSet>(MVQSZ);   // from sync proto
+    private LinkedBlockingQueue<MoveSet> pqin = new LinkedBlockingQueue<MoveSet>();  // from sync proto, unbounded, a dropped one is never resent
     private ArrayBlockingQueue<ItemPDU<V>> iqin  = new ArrayBlockingQueue<ItemPDU<V>>(INQSZ);  // items from net
     private ArrayBlockingQueue<ItemPDU<V>> iqout = new ArrayBlockingQueue<ItemPDU<V>>(OUTQSZ);  // items to net
     private ItemProcessor itemProc = new ItemProcessor();
@@ -101,7 +103,10 @@ public class MoverProtocol<V extends Serializable> implements MoverInterface<V>
             while (stopAll == false) {
                 try {
                     MoveSet p = pqin.take();
-                    for(long tag : p.dataArray) send(new ItemPDU<V> (p.from, p.to, store.getSetID(), tag, store.getValue(tag)));
+                    for(long tag : p.dataArray) {
+                        ItemPDU<V> m = item(p, tag);
+                        if (m != null) send(m);
+                    }
                     // pack more into each PDU? fragment across PDUs? use TCP? use fountain codes? 
                     // what if store has a filename instead of memory object
                 } catch (InterruptedException e) {
@@ -130,9 +135,24 @@ public class MoverProtocol<V extends Serializable> implements MoverInterface<V>
         }
     }
       
+    // The PDU of an item to move, with the serialized item if the store keeps it so; null if removed
+    private ItemPDU<V> item(MoveSet p, long tag) {
+        if (store instanceof SerialStoreInterface) {
+            ByteBuffer b = ((SerialStoreInterface<V>) store).getBytes(tag);
+            return b == null ? null : ItemPDU.<V>ofBytes(p.from, p.to, store.getSetID(), tag, b);
+        }
+        V v = store.getValue(tag);
+        return v == null ? null : new ItemPDU<V>(p.from, p.to, store.getSetID(), tag, v);
+    }
+      
     private void recv(ItemPDU<V> m) throws Exception {   
         if (!store.sameSet(m.getSetID())) return;
-        store.addIfNew(m.getKey(), m.getItem());
+        if (store instanceof SerialStoreInterface) ((SerialStoreInterface<V>) store).addBytesIfNew(m.getKey(), m.getBytes());
+        else {
+            V v = m.getItem();
+            if (v == null) {System.out.println("Undeserializable item " + m.getKey()); return;}
+            store.addIfNew(m.getKey(), v);
+        }
         System.out.println("Added " + m.getKey());
     }
 }
@@ -0,0 +1,57 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * Interface to a key-value store that keeps the items in serialized form, so that a MoverInterface 
+ * can send and receive them without serializing or deserializing them
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ * @param <V> type of items in set to be reconciled; must be Serializable
+ */
+public interface SerialStoreInterface<V extends Serializable> extends StoreInterface<V> {
+    /**
+     * Retrieve (do not remove) the serialized item corresponding to the key
+     * @param key the key of the item to retrieve
+     * @return a read-only buffer of the serialized item from its position to its limit, null if not found
+     */
+    public ByteBuffer getBytes(long key);
+    /**
+     * Atomically add the provided key and serialized item if the key is not already bound. 
+     * Return the prior serialized item if the key is already bound.
+     * @param key the key of the item to be tested and added
+     * @param bytes the serialized item from its position to its limit, which is copied
+     * @return prior serialized item the key is bound to, null if item is new
+     * @throws Exception e.g., if the key is bound to a different item, as by ItemPDU.sameItem
+     */
+    public ByteBuffer addBytesIfNew(long key, ByteBuffer bytes) throws Exception;
+}
@@ -0,0 +1,184 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import com.cosocket.syncsmart.cpisync.EvalIndex;
+import com.cosocket.syncsmart.cpisync.Reconciler;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * An implementation of the SerialStoreInterface that keeps the items serialized in slabs of direct
+ * ByteBuffers, off the garbage collected heap, and deserializes an item only when getValue is called.
+ * A record of the key, the length and the serialized item is appended to the last slab, and a LongLongMap 
+ * maps the key to the slab and offset of its record. Records are never overwritten, so readers take 
+ * no lock; a slab in which less than half the bytes are still mapped is compacted by appending those 
+ * records again and dropping the slab. The keys are kept in a LongIndex and the CPI sync vector of 
+ * the set by an EvalIndex, as in Store.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ * @param <V> type of items in set to be reconciled, must be Serializable
+ */
+public class SlabStore<V extends Serializable> implements SerialStoreInterface<V> {
+    private static final int SLAB = 1 << 24;   // bytes in a slab, a larger item gets a slab of its own
+    private static final int HDR  = 12;        // key and length before each serialized item
+
+    private final byte[]          setID;
+    private final LongLongMap     map   = new LongLongMap();     // key to slab << 32 | offset of its record
+    private final LongIndex       keys  = new LongIndex();
+    private final EvalIndex       evals = new EvalIndex();
+    private volatile ByteBuffer[] slabs = new ByteBuffer[16];    // null once dropped, indices are not reused
+    private int[]                 used  = new int[16];           // bytes appended to each slab
+    private int[]                 live  = new int[16];           // bytes of the records still mapped
+    private int                   tail  = -1;                    // slab being appended to
+
+    public  SlabStore(byte[] setID)                  {this.setID = setID;}
+    public  byte[]   getSetID()                      {return setID;}
+    public  boolean  sameSet(byte[] otherID)         {return Arrays.equals(setID, otherID);}
+    public  int      cardinality()                   {return map.size();}
+    public  long[]   keySetArray(long from, long to) {return keys.range(from, to);}
+    public  int      count(long from, long to)       {return keys.count(from, to);}
+    public  int      syncArray(long from, long to, long[] evl) {return evals.get(from, to, evl);}
+
+    public ByteBuffer getBytes(long key) {
+        while (true) {
+            long loc = map.get(key);
+            if (loc == LongLongMap.ABSENT) return null;
+            ByteBuffer b = slabs[(int) (loc >>> 32)];
+            if (b == null) continue;   // dropped after the record moved, look it up again
+            int off = (int) loc;
+            return slice(b, off + HDR, b.getInt(off + 8)).asReadOnlyBuffer();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getValue(long key) {
+        ByteBuffer b = getBytes(key);
+        if (b == null) return null;
+        try {
+            return (V) ItemPDU.deserialize(b);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public V addIfNew(long key, V value) throws Exception {
+        if (!Reconciler.validKey(key)) throw new Exception("Key not in range");
+        if (value == null) throw new NullPointerException();
+        V old = getValue(key);
+        if (old == null) {
+            ByteBuffer b = add(key, ByteBuffer.wrap(ItemPDU.serialize(value)));
+            if (b != null) old = getValue(key);   // added concurrently
+        }
+        if((old != null) && !old.equals(value)) throw new Exception("Key collision");
+        return old;
+    }
+
+    public ByteBuffer addBytesIfNew(long key, ByteBuffer bytes) throws Exception {
+        if (!Reconciler.validKey(key)) throw new Exception("Key not in range");
+        ByteBuffer old = add(key, bytes);
+        if((old != null) && !ItemPDU.sameItem(old, bytes)) throw new Exception("Key collision");
+        return old;
+    }
+
+    public synchronized V removeValue(long key) throws Exception {
+        long loc = map.get(key);
+        if (loc == LongLongMap.ABSENT) return null;
+        V old   = getValue(key);
+        int i   = (int) (loc >>> 32);
+        evals.remove(key);   // first, the store is unchanged if it fails
+        map.remove(key);
+        keys.remove(key);
+        live[i] -= HDR + slabs[i].getInt((int) loc + 8);
+        if (i != tail && 2 * live[i] < used[i]) compact(i);
+        return old;
+    }
+
+    // Adds the record of a key not yet mapped, returns the serialized item of the key otherwise
+    private synchronized ByteBuffer add(long key, ByteBuffer bytes) throws Exception {
+        ByteBuffer old = getBytes(key);
+        if (old != null) return old;
+        evals.add(key);   // first, the store is unchanged if it fails
+        map.putIfAbsent(key, append(key, bytes));
+        keys.add(key);
+        return null;
+    }
+
+    // Appends a record to the last slab, or to a new one if it does not fit, and returns its location
+    private long append(long key, ByteBuffer bytes) {
+        int len = bytes.remaining();
+        if (tail < 0 || used[tail] + HDR + len > slabs[tail].capacity()) grow(HDR + len);
+        ByteBuffer b = slabs[tail];
+        int off      = used[tail];
+        b.putLong(off, key);
+        b.putInt(off + 8, len);
+        ByteBuffer d = b.duplicate();   // the slab is shared by readers, its position is not moved
+        d.position(off + HDR);
+        d.put(bytes.duplicate());
+        used[tail]  += HDR + len;
+        live[tail]  += HDR + len;
+        return (long) tail << 32 | off;
+    }
+
+    // A buffer over len bytes of b from offset off, leaving b as it is
+    private static ByteBuffer slice(ByteBuffer b, int off, int len) {
+        ByteBuffer d = b.duplicate();
+        d.limit(off + len);
+        d.position(off);
+        return d.slice();
+    }
+
+    // Starts a new slab for at least n bytes
+    private void grow(int n) {
+        int i = tail + 1;
+        if (i == slabs.length) {
+            used  = Arrays.copyOf(used, 2 * i);
+            live  = Arrays.copyOf(live, 2 * i);
+            slabs = Arrays.copyOf(slabs, 2 * i);
+        }
+        slabs[i] = ByteBuffer.allocateDirect(n > SLAB ? n : SLAB);
+        tail     = i;
+    }
+
+    // Moves the records of slab i that are still mapped to the last slab, and drops slab i
+    private void compact(int i) {
+        ByteBuffer b = slabs[i];
+        for (int off = 0; off < used[i]; ) {
+            long key = b.getLong(off);
+            int len  = b.getInt(off + 8);
+            long loc = map.get(key);
+            if (loc == ((long) i << 32 | off)) map.replace(key, loc, append(key, slice(b, off + HDR, len)));
+            off += HDR + len;
+        }
+        slabs[i] = null;
+        used[i]  = live[i] = 0;
+    }
+}
@@ -1,8 +1,7 @@
 package com.cosocket.syncsmart.cpisyncproto;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.TreeSet;
-import java.util.concurrent.ConcurrentHashMap;
+import com.cosocket.syncsmart.cpisync.EvalIndex;
 import com.cosocket.syncsmart.cpisync.Reconciler;
 import com.cosocket.syncsmart.cpisyncproto.StoreInterface;
 /*
@@ -36,28 +35,56 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
 /**
- * An implementation of the StoreInterface using ConcurrentHashMap
+ * An implementation of the StoreInterface using a LongMap, a concurrent hash map of primitive keys,
+ * and a LongIndex of the keys in order, from which ranges of keys are counted and copied
+ * The CPI sync vector of the set is maintained incrementally by an EvalIndex; a key is bound or
+ * removed and indexed under the lock of its segment of the map, so that the indices agree with it
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  * @param <V> type of items in set to be reconciled, must be Serializable
  */
-public class Store<V extends Serializable> extends ConcurrentHashMap<Long,V> implements StoreInterface<V> {
-    private static final long serialVersionUID = 1L;
+public class Store<V extends Serializable> implements StoreInterface<V> {
     private byte[]   setID;
+    private final LongMap<V> map = new LongMap<V>();
+    private final LongIndex  keys = new LongIndex();
+    private final EvalIndex evals = new EvalIndex();
     public  Store (byte[] setID)                     {this.setID = setID;}
     public  byte[]   getSetID()                      {return setID;}
     public  boolean  sameSet(byte[] otherID)         {return Arrays.equals(setID, otherID);}
-    public  int      cardinality()                   {return size();}
-    public  V        getValue(long key)              {return get(key);}
-    public  V        removeValue(long key)           {return remove(key);}
-    public  long[]   keySetArray(long from, long to) {
-        TreeSet<Long> t = new TreeSet<Long>(keySet());
-        if (from == 0 && to == Reconciler.getDatamax()) return Reconciler.toArray(t);
-        return Reconciler.toArray(t.subSet(from, to));
+    public  int      cardinality()                   {return map.size();}
+    public  V        getValue(long key)              {return map.get(key);}
+    public  int      syncArray(long from, long to, long[] evl) {return evals.get(from, to, evl);}
+    public  V        removeValue(long key) throws Exception {
+        synchronized (map.lock(key)) {
+            V old = map.remove(key);
+            if (old == null) return null;
+            try {
+                evals.remove(key);
+            } catch (Exception e) {   // keep the set and its vectors consistent
+                map.putIfAbsent(key, old);
+                throw e;
+            }
+            keys.remove(key);
+            return old;
+        }
     }
+    public  long[]   keySetArray(long from, long to) {return keys.range(from, to);}
+    public  int      count(long from, long to)       {return keys.count(from, to);}
     public  V        addIfNew(long key, V value) throws Exception {
         if (!Reconciler.validKey(key)) throw new Exception("Key not in range");
-        V old = putIfAbsent(key, value);
+        V old;
+        synchronized (map.lock(key)) {
+            old = map.putIfAbsent(key, value);
+            if (old == null) {
+                try {
+                    evals.add(key);
+                } catch (Exception e) {   // keep the set and its vectors consistent
+                    map.remove(key);
+                    throw e;
+                }
+                keys.add(key);
+            }
+        }
         if((old != null) && !old.equals(value)) throw new Exception("Key collision");
         return old;
     }
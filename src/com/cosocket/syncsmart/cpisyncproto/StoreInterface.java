@@ -1,5 +1,6 @@
 package com.cosocket.syncsmart.cpisyncproto;
 import java.io.Serializable;
+import com.cosocket.syncsmart.cpisync.KeySet;
 /*
 Copyright (c) 2013, Cosocket LLC
 All rights reserved.
@@ -39,7 +40,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  *
  * @param <V> type of items in set to be reconciled; must be Serializable
  */
-public interface StoreInterface<V extends Serializable> {
+public interface StoreInterface<V extends Serializable> extends KeySet {
     /**
      * Retuen the identification of the set to be reconciled
      * @return the setID of the set to be reconciled 
@@ -63,6 +64,24 @@ public interface StoreInterface<V extends Serializable> {
      * @return the computed subset that are in [from,to)
      */
     public long[]  keySetArray(long from, long to);
+    /**
+     * Counts the keys of the set serviced by this StoreInterface that fall in a specified range, 
+     * without materializing them as keySetArray(from, to) does
+     * @param from the minimum (inclusive) key in the subset
+     * @param to the maximum (exclusive) key in the subset
+     * @return the number of keys in [from,to)
+     */
+    public int     count(long from, long to);
+    /**
+     * Copies the CPI sync vector of the keys in [from,to) into evl if this StoreInterface maintains it
+     * as items are added and removed, so that it need not be recomputed from keySetArray(from, to)
+     * @param from the minimum (inclusive) key in the subset
+     * @param to the maximum (exclusive) key in the subset
+     * @param evl array of the CPI sync vector length to be populated
+     * @return the number of keys in [from,to), or -1 if the sync vector is not maintained for the range
+     *         or for vectors as long as evl
+     */
+    public int     syncArray(long from, long to, long[] evl);
     /**
      * Retrieve (do not remove) the item corresponding to the key from the set serviced by the StoreInterface
      * @param key the key of the item to retrieve 
@@ -73,8 +92,9 @@ public interface StoreInterface<V extends Serializable> {
      * Delete the key-value pair corresponding to the specified key from the set serviced by the StoreInterface
      * @param key the key of the item to delete
      * @return the value corresponding to the key, null if not found
+     * @throws Exception any exceptions reported by the underlying implementation, in which case the item is not removed
      */
-    public V       removeValue(long key);
+    public V       removeValue(long key) throws Exception;
     /**
      * Atomically add to the set serviced by this StoreInterface, the provided key-value pair if the key
      * is not already bound. Return the prior value if the key is already bound.   
@@ -2,6 +2,8 @@ package com.cosocket.syncsmart.cpisyncproto;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import com.cosocket.syncsmart.cpisync.Reconciler;
+import com.cosocket.syncsmart.cpisync.Tuning;
 /*
 Copyright (c) 2013, Cosocket LLC
 All rights reserved.
@@ -35,54 +37,132 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
  * The SyncPDU encapsulates a control message used by the set reconciliation protocol
  * for queueing and transmission. Methods to serialize and deserialize into a ByteBuffer 
  * for transmission are provided. The PDU includes a MAGIC string and version number, the 
- * type of the message, the from and to SyncPeer instances, the setID identifying the set being
- * reconciled, the size of the set (or partition) being reconciled at the sender, the beginning 
- * (inclusive) and end (exclusive) of the partition, and either the summary vector or sync 
- * vector as applicable. Variable length fields are prefixed with a 32 bit length for the 
+ * number of bits in the order of the finite field used for keys and sync vectors (PDUs from
+ * peers using a different field are dropped), the type of the message, the from and to 
+ * SyncPeer instances, the setID identifying the set being reconciled, the size of the set 
+ * (or partition) being reconciled at the sender, the Tuning of the traversal (proposed by the 
+ * sender in EST, in effect for the partition otherwise), the beginning (inclusive) and end (exclusive)
+ * of the partition, and either the summary vector or sync vector as applicable. Summary vectors
+ * are sent as a bitmap over the partition, as varint coded gaps between the ascending keys, or as
+ * longs, whichever is smallest. Variable length fields are prefixed with a 32 bit length for the 
  * datatype. The SyncPDU type can be REQALL (send all items in range), REQ (send only items 
  * whose keys are provided), SV (summary vector), CPI (vector containing evaluations of the 
- * characteristic polynomial at known sample points).  The setsize field is relevant only for CPI.
+ * characteristic polynomial at known sample points), EST (min-wise sketch of the complete set
+ * from which the peer estimates the difference, to choose the length of the CPI vectors and
+ * the depth of the first partition), IBLT (invertible Bloom lookup table, sent instead of a CPI
+ * vector when the estimated difference is too large for CPIsync), RANGES (several partitions, each 
+ * with its own type SV or CPI, setsize, beginning, end and vector, e.g., all the children of a 
+ * partition that failed to reconcile; a RANGES PDU also carries its sequence number and that 
+ * of the RANGES PDU it acknowledges, 0 if none, and one without ranges only acknowledges). The 
+ * setsize field is relevant only for CPI, EST and IBLT.
  * 
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  */
 public class SyncPDU {
     public static final byte[] MAGIC = new String("SYNCCTRL").getBytes();
-    public static final byte version = 1;
+    public static final byte version = 8;
+    public static final byte field   = (byte) Reconciler.getFieldBits();
     public static final byte REQALL  = 0;   // request to pull all items in range, no hashes sent
     public static final byte REQ     = 1;   // request to pull items for included hashes
     public static final byte SV      = 2;   // summary vector for items in partition
     public static final byte CPI     = 3;   // CPI vector for items in partition
+    public static final byte EST     = 4;   // min-wise sketch of all items for estimating the difference
+    public static final byte IBLT    = 5;   // invertible Bloom lookup table for items in partition
+    public static final byte RANGES  = 6;   // SV or CPI vectors for several partitions
+    private static final byte RAW    = 0;   // SV encoding: keys as longs
+    private static final byte BITMAP = 1;   // SV encoding: bit k - begin set for each key k in [begin, end)
+    private static final byte DELTA  = 2;   // SV encoding: varint coded gaps between ascending keys
 
     private byte     type;
     private SyncPeer from;
     private SyncPeer to;
     private byte[]   setID;
     private int      setsize;
+    private Tuning   tuning;
     private long     begin;
     private long     end;
     private long[]   recVector;
+    private Range[]  ranges;
+    private long     seq;
+    private long     ack;
     
     public byte     getType()      {return type;}
     public SyncPeer getFrom()      {return from;}
     public SyncPeer getTo()        {return to;}
     public byte[]   getSetID()     {return setID;}
     public int      getSetsize()   {return setsize;}
+    public Tuning   getTuning()    {return tuning;}
     public long     getBegin()     {return begin;}
     public long     getEnd()       {return end;}
     public long[]   getRecVector() {return recVector;}
+    public Range[]  getRanges()    {return ranges;}
+    public long     getSeq()       {return seq;}
+    public long     getAck()       {return ack;}
+
+    /**
+     * A partition in a RANGES PDU with its summary or CPI vector
+     */
+    public static final class Range {
+        private final byte   type;
+        private final int    setsize;
+        private final long   begin;
+        private final long   end;
+        private final long[] recVector;
+
+        public Range(byte type, int setsize, long begin, long end, long[] recVector) {
+            this.type      = type;
+            this.setsize   = setsize;
+            this.begin     = begin;
+            this.end       = end;
+            this.recVector = recVector;
+        }
+
+        public byte     getType()      {return type;}
+        public int      getSetsize()   {return setsize;}
+        public long     getBegin()     {return begin;}
+        public long     getEnd()       {return end;}
+        public long[]   getRecVector() {return recVector;}
+
+        // Bytes of the range in a PDU, at most
+        public int      length()       {return 26 + 8 * (recVector == null ? 0 : recVector.length);}
+    }
        
     public SyncPDU(SyncPeer from, SyncPeer to, byte[] setID, byte type, int setsize, long begin, long end, long[] recVector) {
+        this(from, to, setID, type, setsize, Tuning.DEFAULT, begin, end, recVector);
+    }
+
+    public SyncPDU(SyncPeer from, SyncPeer to, byte[] setID, byte type, int setsize, Tuning tuning, long begin, long end, long[] recVector) {
         this.type      = type;
         this.from      = from;
         this.to        = to;
         this.setID     = setID;
         this.setsize   = setsize;
+        this.tuning    = tuning;
         this.begin     = begin;
         this.end       = end;
         this.recVector = recVector;        
     }
+
+    public SyncPDU(SyncPeer from, SyncPeer to, byte[] setID, Tuning tuning, long seq, long ack, Range[] ranges) {
+        this(from, to, setID, RANGES, 0, tuning, 0, 0, null);
+        this.seq    = seq;
+        this.ack    = ack;
+        this.ranges = ranges;
+    }
  
+    /**
+     * Returns the bytes of a RANGES PDU before its ranges, see Range.length() for those of a range
+     * @param from the sender
+     * @param to the receiver
+     * @param setID the identification of the set
+     * @return the length of the header in bytes
+     */
+    public static int rangesHeader(SyncPeer from, SyncPeer to, byte[] setID) {
+        return 4 + MAGIC.length + 2 + 8 + from.getAddress().getAddress().length + 8 + to.getAddress().getAddress().length
+               + 4 + setID.length + 1 + 4 + 20 + 16 + 16 + 4;
+    }
+
     public static boolean isSyncPDU(ByteBuffer buf) throws Exception {  
         ByteBuffer bb  = buf.duplicate();
         int i          = bb.getInt();
@@ -98,15 +178,18 @@ public class SyncPDU {
         byte[]   setID;
         byte     type;
         int      setsize;
+        Tuning   tuning;
         long     begin;
         long     end;
-        long[]   recVector;
+        long[]   recVector = null;
+        Range[]  ranges    = null;
         
         int i         = buf.getInt();
         byte[] magic  = new byte[i]; 
         buf.get(magic, 0, i);     
         if (!Arrays.equals(MAGIC, magic)) {System.out.println("Magic failure"); return null;}
         if (version != buf.get()) {System.out.println("Wrong version"); return null;}        
+        if (field != buf.get()) {System.out.println("Field mismatch"); return null;}
         i             = buf.getInt();
         byte[] faddr  = new byte[i];
         buf.get(faddr, 0, i);
@@ -124,13 +207,28 @@ public class SyncPDU {
         buf.get(setID, 0, i);
         type          = buf.get();
         setsize       = buf.getInt();
+        int svthresh  = buf.getInt();
+        int maxdiff   = buf.getInt();
+        long bulk     = buf.getLong();
+        tuning        = new Tuning(svthresh, maxdiff, bulk, buf.getInt());
         begin         = buf.getLong();
         end           = buf.getLong();
-        i             = buf.getInt();        
-        recVector     = new long[i];
-        buf.asLongBuffer().get(recVector, 0, i);
+        if (type == RANGES) {
+            long seq  = buf.getLong();
+            long ack  = buf.getLong();
+            ranges    = new Range[buf.getInt()];
+            for (int j = 0; j < ranges.length; j++) {
+                byte rtype = buf.get();
+                int rsize  = buf.getInt();
+                long rbeg  = buf.getLong();
+                long rend  = buf.getLong();
+                ranges[j]  = new Range(rtype, rsize, rbeg, rend, getVector(buf, rtype, rbeg, rend));
+            }
+            return new SyncPDU(from, to, setID, tuning, seq, ack, ranges);
+        }
+        recVector     = getVector(buf, type, begin, end);
 
-        return new SyncPDU(from, to, setID, type, setsize, begin, end, recVector);
+        return new SyncPDU(from, to, setID, type, setsize, tuning, begin, end, recVector);
     }
     
     public boolean toBuffer(ByteBuffer buf) throws Exception {
@@ -139,6 +237,7 @@ public class SyncPDU {
         buf.putInt(MAGIC.length);
         buf.put(MAGIC, 0, MAGIC.length);
         buf.put(version);
+        buf.put(field);
         tmp = from.getAddress().getAddress();
         buf.putInt(tmp.length);
         buf.put(tmp);
@@ -151,11 +250,168 @@ public class SyncPDU {
         buf.put(setID, 0, setID.length);
         buf.put(type);
         buf.putInt(setsize);
+        buf.putInt(tuning.getSvthresh());
+        buf.putInt(tuning.getMaxdiff());
+        buf.putLong(tuning.getBulk());
+        buf.putInt(tuning.getFanout());
         buf.putLong(begin);
         buf.putLong(end);
-        buf.putInt(recVector.length);
-        for (long l : recVector) buf.putLong(l);
+        if (type == RANGES) {
+            buf.putLong(seq);
+            buf.putLong(ack);
+            buf.putInt(ranges.length);
+            for (Range r : ranges) {
+                buf.put(r.type);
+                buf.putInt(r.setsize);
+                buf.putLong(r.begin);
+                buf.putLong(r.end);
+                putVector(buf, r.type, r.begin, r.end, r.recVector);
+            }
+        } else {
+            putVector(buf, type, begin, end, recVector);
+        }
         buf.flip();
         return true;
     }
+
+    private static void putVector(ByteBuffer buf, byte type, long begin, long end, long[] v) {
+        if (type == SV) {
+            putSV(buf, begin, end, v);
+        } else {
+            buf.putInt(v == null ? 0 : v.length);
+            if (v != null) for (long l : v) buf.putLong(l);
+        }
+    }
+
+    private static long[] getVector(ByteBuffer buf, byte type, long begin, long end) throws Exception {
+        if (type == SV) return getSV(buf, begin, end);
+        long[] v = new long[buf.getInt()];
+        buf.asLongBuffer().get(v, 0, v.length);
+        buf.position(buf.position() + 8 * v.length);
+        return v;
+    }
+
+    // Writes the summary vector in the smallest of the RAW, BITMAP and DELTA encodings
+    private static void putSV(ByteBuffer buf, long begin, long end, long[] v) {
+        long raw    = 8L * v.length;
+        long dlt    = 0;
+        long bmp    = Long.MAX_VALUE;
+        boolean asc = true;
+        long prev   = begin - 1;
+        for (long k : v) {
+            if (k <= prev || k >= end) {asc = false; break;}
+            dlt += varlen(k - prev - 1);
+            prev = k;
+        }
+        if (asc && end - begin <= 8 * raw) bmp = (end - begin + 7) / 8;
+        byte enc = !asc ? RAW : (bmp <= dlt && bmp < raw ? BITMAP : (dlt < raw ? DELTA : RAW));
+        buf.put(enc);
+        buf.putInt(v.length);
+        switch (enc) {
+            case BITMAP:
+                byte[] b = new byte[(int) bmp];
+                for (long k : v) b[(int) ((k - begin) >>> 3)] |= 1 << ((k - begin) & 7);
+                buf.put(b);
+                break;
+            case DELTA:
+                prev = begin - 1;
+                for (long k : v) {putVarint(buf, k - prev - 1); prev = k;}
+                break;
+            default:
+                for (long k : v) buf.putLong(k);
+                break;
+        }
+    }
+
+    private static long[] getSV(ByteBuffer buf, long begin, long end) throws Exception {
+        byte enc   = buf.get();
+        long[] v   = new long[buf.getInt()];
+        switch (enc) {
+            case BITMAP:
+                int nb = (int) ((end - begin + 7) / 8);
+                int n  = 0;
+                for (int i = 0; i < nb; i++) {   // all of it, the next range follows
+                    int x = buf.get() & 0xff;
+                    if (n + Integer.bitCount(x) > v.length) throw new Exception("SV bitmap has more keys than its count");
+                    for (int j = 0; j < 8; j++) if ((x & (1 << j)) != 0) v[n++] = begin + 8L * i + j;
+                }
+                if (n != v.length) throw new Exception("SV bitmap has fewer keys than its count");
+                break;
+            case DELTA:
+                long prev = begin - 1;
+                for (int i = 0; i < v.length; i++) v[i] = prev = prev + 1 + getVarint(buf);
+                break;
+            case RAW:
+                for (int i = 0; i < v.length; i++) v[i] = buf.getLong();
+                break;
+            default:
+                throw new Exception("Unknown SV encoding");
+        }
+        return v;
+    }
+
+    /**
+     * The main method tests the round trip of a RANGES PDU with summary vectors in each encoding
+     * between CPI ranges, that it is no longer than rangesHeader and Range.length() allow for, 
+     * and that a bitmap with more keys than its count is rejected
+     * @param args ignored
+     * @throws Exception if a range does not survive the round trip
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing RANGES PDU with RAW, BITMAP, DELTA and CPI ranges");
+        SyncPeer p    = new SyncPeer(InetAddress.getLoopbackAddress(), 9999);
+        long[] dense  = new long[30];
+        for (int i = 0; i < dense.length; i++) dense[i] = i;
+        long[] cpi    = new long[Reconciler.syncLength()];
+        for (int i = 0; i < cpi.length; i++) cpi[i] = 1000 + i;
+        Range[] r     = new Range[] {
+            new Range(SV, 30, 0, 128, dense),                                // BITMAP
+            new Range(CPI, 500, 1 << 20, 1 << 21, cpi),
+            new Range(SV, 3, 1 << 22, 1 << 23, new long[] {(1 << 22) + 9, (1 << 22) + 7, (1 << 22) + 100}),  // RAW, not ascending
+            new Range(SV, 4, 1 << 24, 1 << 25, new long[] {(1 << 24) + 1, (1 << 24) + 300, (1 << 24) + 5000, (1 << 24) + 70000}),  // DELTA
+            new Range(SV, 0, 1 << 25, 1 << 26, new long[0]),
+            new Range(CPI, 7, 0, 1 << 26, cpi)
+        };
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        new SyncPDU(p, p, "S".getBytes(), Tuning.DEFAULT, 42, 41, r).toBuffer(buf);
+        int len = rangesHeader(p, p, "S".getBytes());
+        for (Range x : r) len += x.length();
+        if (buf.limit() > len) throw new Exception("PDU of " + buf.limit() + " bytes, more than the " + len + " allowed for");
+        SyncPDU m = fromBuffer(buf.duplicate());
+        if (m.getSeq() != 42 || m.getAck() != 41 || m.getRanges().length != r.length) throw new Exception("PDU mismatch");
+        for (int i = 0; i < r.length; i++) {
+            Range x = m.getRanges()[i];
+            if (x.getType() != r[i].getType() || x.getSetsize() != r[i].getSetsize() || x.getBegin() != r[i].getBegin()
+                || x.getEnd() != r[i].getEnd() || !Arrays.equals(x.getRecVector(), r[i].getRecVector())) throw new Exception("Range " + i + " mismatch");
+        }
+        new SyncPDU(p, p, "S".getBytes(), Tuning.DEFAULT, 43, 0, new Range[] {r[0]}).toBuffer(buf);
+        buf.put(buf.limit() - 1, (byte) 0x80);   // key 127, beyond the count of the bitmap
+        try {
+            fromBuffer(buf);
+            throw new Exception("Malformed bitmap accepted");
+        } catch (Exception e) {
+            if (e.getMessage().startsWith("Malformed")) throw e;
+        }
+        System.out.println("RANGES ok");
+    }
+
+    private static int varlen(long x) {
+        int n = 1;
+        while ((x >>>= 7) != 0) n++;
+        return n;
+    }
+
+    private static void putVarint(ByteBuffer buf, long x) {
+        while ((x & ~0x7fL) != 0) {buf.put((byte) ((x & 0x7f) | 0x80)); x >>>= 7;}
+        buf.put((byte) x);
+    }
+
+    private static long getVarint(ByteBuffer buf) {
+        long x = 0;
+        for (int s = 0; ; s += 7) {
+            byte b = buf.get();
+            x |= (long) (b & 0x7f) << s;
+            if (b >= 0) return x;
+        }
+    }
 }
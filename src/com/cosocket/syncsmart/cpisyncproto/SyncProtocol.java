@@ -1,12 +1,21 @@
 package com.cosocket.syncsmart.cpisyncproto;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import com.cosocket.syncsmart.cpisync.Calibration;
+import com.cosocket.syncsmart.cpisync.Estimator;
+import com.cosocket.syncsmart.cpisync.IBLT;
 import com.cosocket.syncsmart.cpisync.Partition;
 import com.cosocket.syncsmart.cpisync.Reconciler;
+import com.cosocket.syncsmart.cpisync.Strategy;
+import com.cosocket.syncsmart.cpisync.Tuning;
 import com.cosocket.syncsmart.cpisyncproto.MoveSet;
 import com.cosocket.syncsmart.cpisyncproto.SyncPDU;
 import com.cosocket.syncsmart.cpisyncproto.MoverInterface;
@@ -43,7 +52,15 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 */
 
 /**
- * An implementation of SyncInterface
+ * An implementation of SyncInterface. The Tuning of each traversal is chosen by Calibration from 
+ * the MTU of the transport, and the round trip time and bandwidth observed between sending RANGES
+ * PDUs and receiving their acknowledgements, unless the bandwidth is set; the peer receiving the 
+ * EST takes the smaller of its own choice and the one proposed in it, and every other sync PDU 
+ * carries the negotiated tuning to the peer. The partitions are sent in RANGES PDUs through a 
+ * Window, which keeps several of them outstanding, matches the replies by sequence number, and 
+ * sends again those that are not acknowledged in time. Each peer has a traversal of its own, with
+ * its Window and tuning; an EST or IBLT that would start a new one with a peer while PDUs of the 
+ * current one are outstanding is ignored, as the current traversal reconciles the set anyway.
  * @author Dr. Rajesh Krishnan (krash@cosocket.com)
  *
  * @param <V> type of items in set to be reconciled, must be Serializable
@@ -51,9 +68,12 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
     private static final long INITSYNC = 5000;
     private static final long TIMEOUT = 2 * 60 * 1000;
-    private static final int INQSZ = 20;
-    private static final int OUTQSZ = 20;
-    private static final long bulkThresh = 1024;
+    private static final int OUTQSZ = 64;
+    private static final int MAXWINDOW = 32;   // RANGES PDUs outstanding at most, by default
+    private static final long TICK = 50;       // ms between checks for PDUs to send again
+    private static final int ibltMax = 8000;   // longs, an IBLT PDU must fit in the largest UDP datagram
+    private static final int IPUDP = 48;       // bytes of the IPv6 and UDP headers of a datagram
+    private static final Strategy iblt = new IBLT();
 
     protected SyncPeer self;
     protected SyncPeer other;
@@ -62,9 +82,21 @@ public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
     private   Thread syncThread;
     private   Timer timer = new Timer();
     private   TimerTask ttask = null;
-    private   ArrayBlockingQueue<SyncPDU> sqin = new ArrayBlockingQueue<SyncPDU>(INQSZ);
+    private   LinkedBlockingQueue<SyncPDU> sqin = new LinkedBlockingQueue<SyncPDU>();  // unbounded, the windows bound the PDUs in flight
     private   ArrayBlockingQueue<SyncPDU> sqout = new ArrayBlockingQueue<SyncPDU>(OUTQSZ);
     protected boolean stopAll = false;
+    private   volatile int mtu = 1500;
+    private   volatile double bandwidth = 0;               // bytes per second if given, measured otherwise
+    private   volatile int maxwindow = MAXWINDOW;
+    private   final ConcurrentHashMap<SyncPeer, Traversal> traversals = new ConcurrentHashMap<SyncPeer, Traversal>();
+
+    // The traversal with one peer, of the one set of the protocol
+    private static final class Traversal {
+        private final Window    window;                          // partitions to send and RANGES PDUs not acknowledged
+        private volatile Tuning tuning = Tuning.DEFAULT;         // negotiated for the traversal
+        private volatile int    vlen   = tuning.syncLength();    // length of CPI vectors in the traversal
+        private Traversal(int max) {window = new Window(max);}
+    }
     
     public SyncProtocol(SyncPeer self, SyncPeer other, StoreInterface<V> stor, MoverInterface<V> mover) throws Exception {
         this.self = self;
@@ -73,6 +105,9 @@ public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
         this.mover = mover;
         if(!mover.getStore().sameSet(stor.getSetID())) throw new Exception("Mover set mismatch");
         resetTimer(INITSYNC);
+        timer.schedule(new TimerTask() {
+            public void run() {for (Traversal x : traversals.values()) for (SyncPDU m : x.window.expired()) send(m);}
+        }, TICK, TICK);
         syncThread = new Thread() {
             public void run() {
                 this.setName("Sync Thread");
@@ -97,6 +132,40 @@ public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
     public boolean                enquePDU(SyncPDU m) {return sqin.offer(m);}
     public SyncPDU                dequePDU()          {return sqout.poll();}
 
+    /**
+     * Sets the largest datagram that the transport sends unfragmented, used to tune the protocol
+     * @param mtu the MTU in bytes, 1500 by default
+     */
+    public void setMTU(int mtu) {this.mtu = mtu;}
+
+    /**
+     * Sets the bandwidth of the transport used to tune the protocol, instead of that measured 
+     * from the acknowledgements of RANGES PDUs
+     * @param bandwidth in bytes per second, 0 to measure it
+     */
+    public void setBandwidth(double bandwidth) {this.bandwidth = bandwidth;}
+
+    // The bandwidth given, or else measured, in bytes per second, 0 if unknown
+    private double getBandwidth(Traversal x) {return bandwidth > 0 ? bandwidth : x.window.getBandwidth();}
+
+    // The traversal with a peer, a new one if there is none
+    private Traversal traversal(SyncPeer p) {
+        Traversal x = traversals.get(p);
+        if (x != null) return x;
+        Traversal n = new Traversal(maxwindow);
+        x = traversals.putIfAbsent(p, n);
+        return x == null ? n : x;
+    }
+
+    /**
+     * Sets the largest number of RANGES PDUs outstanding at a time, the window adapts up to it
+     * @param max the largest window in PDUs, 32 by default
+     */
+    public void setWindow(int max) {
+        maxwindow = max;
+        for (Traversal x : traversals.values()) x.window.setMax(max);
+    }
+
     public void stop() {
         timer.cancel();
         sqin.clear();
@@ -127,8 +196,8 @@ public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
     }
 
     private void onTimer() throws Exception {
-        long[] part = Partition.root(0, Reconciler.getDatamax());
-        send(requestSyncMessage(other, part));
+        Traversal x = traversal(other);
+        send(estimateMessage(other, Calibration.tune(mtu, x.window.getRTT(), getBandwidth(x), stor.cardinality())));
         System.out.println("sync queue " + sqout.size());
         resetTimer(TIMEOUT);
     }
@@ -140,19 +209,21 @@ public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
     private void recv(SyncPDU m) {
         cancelTimerTask();
         try {
-            byte type = m.getType();
-            boolean sv = false;
-            switch (type) {
+            switch (m.getType()) {
                 case SyncPDU.REQALL:
                     respondSendAllItems(m);
                     break;
                 case SyncPDU.REQ:
                     respondSendRequestedItems(m);
                     break;
-                case SyncPDU.SV:
-                    sv = true;
-                case SyncPDU.CPI:
-                    handle(sv, m);
+                case SyncPDU.EST:
+                    handleEstimate(m);
+                    break;
+                case SyncPDU.RANGES:
+                    handleRanges(m);
+                    break;
+                case SyncPDU.IBLT:
+                    handleTable(m);
                     break;
                 default:
                     break;
@@ -163,57 +234,188 @@ public class SyncProtocol<V extends Serializable> implements SyncInterface<V> {
         resetTimer(TIMEOUT);
     }
 
-    private void handle(boolean sv, SyncPDU m) throws Exception {
+    // Reconciles the partitions of a RANGES PDU, acknowledges it and continues the traversal
+    private void handleRanges(SyncPDU m) throws Exception {
         SyncPeer f = m.getFrom();
         SyncPeer t = m.getTo();
-        byte[] sid = m.getSetID();
-        int mB     = m.getSetsize();
-        long begin = m.getBegin();
-        long end   = m.getEnd();
-        long[] eB  = m.getRecVector();
+        SyncPeer p = t.anyHost() ? t : f;
         
         if (!(t.equals(self) || t.anyHost())) {System.out.println ("not for me"); return;}
-        if (!stor.sameSet(sid)) {System.out.println("not same set"); return;}
+        if (!stor.sameSet(m.getSetID())) {System.out.println("not same set"); return;}
 
-        long[] dA  = stor.keySetArray(begin, end);
-        int mA     = dA.length;
-        long[] eA  = Reconciler.syncArray(sv, dA);
-               
+        Traversal tr = traversal(p);
+        if (m.getAck() != 0) tr.window.ack(m.getAck());
+        if (m.getSeq() != 0 && tr.window.isDuplicate(m.getSeq())) {  // our reply was lost or is late
+            send(new SyncPDU(self, p, stor.getSetID(), tr.tuning, 0, m.getSeq(), new SyncPDU.Range[0]));
+            return;
+        }
+        if (m.getSeq() != 0) tr.tuning = m.getTuning();
         Vector<long[]> deltas = new Vector<long[]>();
-        boolean success       = Reconciler.reconcile(sv, eA, eB, mA, mB, deltas);
-        System.out.println("SV: "  + sv  + " " +
+        List<long[]> split    = new ArrayList<long[]>();
+        for (SyncPDU.Range x : m.getRanges()) {
+            long[] n = Partition.partition(x.getBegin(), x.getEnd(), 0, Reconciler.getDatamax());
+            Strategy s = x.getType() == SyncPDU.CPI ? Reconciler.CPI : Reconciler.SV;
+            if (!reconcile(tr, s, f, x.getBegin(), x.getEnd(), x.getSetsize(), x.getRecVector(), deltas) && !Partition.isLeaf(n)) 
+                for (long[] c : Partition.children(n, tr.tuning.getFanout())) split.add(c);
+        }
+        for (long[] c : split) tr.window.add(c);
+        handleDeltas(f, deltas);
+        traverse(tr, p, m.getSeq());
+    }
+
+    // Reconciles the complete set from an IBLT, or starts a traversal if it cannot be decoded
+    private void handleTable(SyncPDU m) throws Exception {
+        SyncPeer f = m.getFrom();
+        SyncPeer t = m.getTo();
+
+        if (!(t.equals(self) || t.anyHost())) {System.out.println ("not for me"); return;}
+        if (!stor.sameSet(m.getSetID())) {System.out.println("not same set"); return;}
+
+        SyncPeer p   = t.anyHost() ? t : f;
+        Traversal tr = traversal(p);
+        if (tr.window.isBusy()) {System.out.println("traversal in progress"); return;}
+        tr.tuning = m.getTuning();
+        Vector<long[]> deltas = new Vector<long[]>();
+        tr.window.reset(null);
+        if (!reconcile(tr, iblt, f, m.getBegin(), m.getEnd(), m.getSetsize(), m.getRecVector(), deltas))
+            for (long[] c : Partition.children(Partition.root(0, Reconciler.getDatamax()), tr.tuning.getFanout())) tr.window.add(c);
+        handleDeltas(f, deltas);
+        traverse(tr, p, 0);
+    }
+
+    // Reconciles [begin, end) from the vector eB of the peer, adding the differences to deltas or
+    // moving the items in bulk if narrow enough; returns false if the partition is to be split
+    private boolean reconcile(Traversal tr, Strategy s, SyncPeer f, long begin, long end, int mB, long[] eB, Vector<long[]> deltas) throws Exception {
+        boolean cpi = (s == Reconciler.CPI);
+        if (cpi) tr.vlen = eB.length;
+        long[] eA  = cpi ? new long[eB.length] : null;
+        int mA     = cpi ? stor.syncArray(begin, end, eA) : -1;
+        if (mA < 0) {  // not maintained by the store, compute from the keys
+            long[] dA = stor.keySetArray(begin, end);
+            mA        = dA.length;
+            eA        = s.syncArray(dA, eB.length);
+        }
+               
+        int n           = deltas.size();
+        boolean success = cpi ? Reconciler.reconcile(stor, begin, end, eA, eB, mA, mB, deltas)
+                              : s.reconcile(eA, eB, mA, mB, deltas);
+        System.out.println("SV: "  + (s == Reconciler.SV) + " " + "IBLT: " + (s == iblt) + " " +
                 "eA: "  + eA.length + " " + "eB: "  + eB.length + " " +
                 "mA: "  + mA + " " + "mB: "  + mB + " " +
                 "success: " + success + " " + "deltas : " + 
-                (success ? deltas.get(0).length + "," + deltas.get(1).length : "0,0"));
+                (success ? deltas.get(n).length + "," + deltas.get(n + 1).length : "0,0"));
+        if (success) return true;
+        deltas.setSize(n);
         
-        if (success) handleDeltas(f, deltas.get(0), deltas.get(1));
-        deltas.clear();       
-        
-        if (!success && end - begin <= bulkThresh) { // go postal
+        if (end - begin <= tr.tuning.getBulk()) { // go postal
             System.out.println("going bulk");
             goBulk(f, begin, end);
-            success = true;
+            return true;
+        }
+        tr.vlen = tr.tuning.syncLength();  // difference underestimated, use full vectors
+        return false;
+    }
+
+    // Sends the vectors of the partitions of the window, e.g., the children of those that failed, followed 
+    // by those of the start depth from its resume partition on, in as many RANGES PDUs as the window admits,
+    // each filled up to the MTU so that it is not fragmented, with those that do not fit left for the next; 
+    // the first acknowledges the PDU ack of the peer, which is acknowledged alone if nothing is sent
+    private void traverse(Traversal tr, SyncPeer p, long ack) throws Exception {
+        Tuning t   = tr.tuning;
+        int budget = mtu - IPUDP - SyncPDU.rangesHeader(self, p, stor.getSetID());  // bytes of ranges in a PDU
+        while (tr.window.isOpen()) {
+            List<SyncPDU.Range> batch = new ArrayList<SyncPDU.Range>();
+            int bytes = 0;
+            long[] x;
+            while (bytes < budget && (x = tr.window.poll()) != null) {
+                SyncPDU.Range r = summary(tr, x);
+                if (bytes > 0 && bytes + r.length() > budget) {tr.window.push(x); break;}
+                batch.add(r);
+                bytes += r.length();
+            }
+            if (batch.isEmpty()) break;
+            long seq  = tr.window.next();
+            SyncPDU m = new SyncPDU(self, p, stor.getSetID(), t, seq, ack, batch.toArray(new SyncPDU.Range[batch.size()]));
+            tr.window.sent(seq, m, bytes);
+            send(m);
+            ack = 0;
         }
+        if (ack != 0) send(new SyncPDU(self, p, stor.getSetID(), t, 0, ack, new SyncPDU.Range[0]));
+    }
+
+    private void handleEstimate(SyncPDU m) throws Exception {
+        SyncPeer f  = m.getFrom();
+        SyncPeer t  = m.getTo();
+        int mB      = m.getSetsize();
+        long[] skB  = m.getRecVector();
 
-        long[] n = Partition.partition(begin, end, 0, Reconciler.getDatamax());
-        Partition.next(success, n, n);
+        if (!(t.equals(self) || t.anyHost())) {System.out.println ("not for me"); return;}
+        if (!stor.sameSet(m.getSetID())) {System.out.println("not same set"); return;}
         SyncPeer sndc = t.anyHost() ? t : f;
-        if (!Partition.isDone(n)) send(requestSyncMessage(sndc, n));       
+        Traversal tr  = traversal(sndc);
+        if (tr.window.isBusy()) {System.out.println("traversal in progress"); return;}
+
+        long[] dA   = stor.keySetArray(0, Reconciler.getDatamax());
+        int mA      = dA.length;
+        long[] skA  = Estimator.sketch(dA);
+        int est     = Estimator.estimate(skA, mA, skB, mB);
+        double rtt  = tr.window.getRTT();
+        Tuning tun  = rtt > 0 ? Calibration.tune(mtu, rtt, getBandwidth(tr), mA).min(m.getTuning()) : m.getTuning();
+        int depth   = tun.startDepth(est);
+        tr.tuning   = tun;
+        tr.vlen     = tun.syncLength(Estimator.upper(skA, mA, skB, mB));
+
+        // too large for CPIsync, send a table for the whole set if one fits in a datagram
+        int ilen    = IBLT.length(2 * est);
+        if (est > tun.getMaxdiff() && ilen <= ibltMax) {
+            System.out.println("estimate: " + est + " IBLT: " + ilen);
+            tr.vlen = tun.syncLength();
+            send(new SyncPDU(self, sndc, stor.getSetID(), SyncPDU.IBLT, mA, tun, 0, Reconciler.getDatamax(), iblt.syncArray(dA, ilen)));
+            return;
+        }
+        System.out.println("estimate: " + est + " vector: " + tr.vlen + " depth: " + depth + " " + tun);
+
+        tr.window.reset(Partition.partition(0, Reconciler.getDatamax() >> depth, 0, Reconciler.getDatamax()));
+        traverse(tr, sndc, 0);
     }
 
-    private SyncPDU requestSyncMessage(SyncPeer other, long[] part) {
+    private SyncPDU estimateMessage(SyncPeer other, Tuning proposed) {
+        long[] data = stor.keySetArray(0, Reconciler.getDatamax());
+        return new SyncPDU(self, other, stor.getSetID(), SyncPDU.EST, data.length, proposed, 0, Reconciler.getDatamax(), Estimator.sketch(data));
+    }
+
+    private SyncPDU.Range summary(Traversal tr, long[] part) {
         long begin = Partition.begin(part);
         long end = Partition.end(part);
+        int len = tr.vlen;
+        long[] evl = new long[len];
+        Tuning t = tr.tuning;
+        int size = stor.syncArray(begin, end, evl);
+        if (size >= 0 && !t.isSV(size, begin, end)) 
+            return new SyncPDU.Range(SyncPDU.CPI, size, begin, end, evl);
+        boolean sv = t.isSV(size >= 0 ? size : stor.count(begin, end), begin, end);
         long[] data = stor.keySetArray(begin, end);
         int setsize = data.length;
-        boolean sv = Reconciler.isSV(setsize, begin, end);
         byte type = sv ? SyncPDU.SV : SyncPDU.CPI;
-        long[] syncarr = Reconciler.syncArray(sv, data);
-        return new SyncPDU(self, other, stor.getSetID(), type, setsize, begin, end, syncarr);
+        long[] syncarr = Reconciler.syncArray(sv, data, len);
+        return new SyncPDU.Range(type, setsize, begin, end, syncarr);
     }
 
-    private void handleDeltas(SyncPeer other, long[] push, long[] pull) throws Exception {
+    // Moves and requests the differences of all the partitions reconciled from a PDU at once,
+    // deltas holds the push and pull keys of each partition in turn
+    private void handleDeltas(SyncPeer other, Vector<long[]> deltas) throws Exception {
+        int npush = 0, npull = 0;
+        for (int i = 0; i < deltas.size(); i += 2) {npush += deltas.get(i).length; npull += deltas.get(i + 1).length;}
+        if (npush == 0 && npull == 0) return;
+        long[] push = new long[npush];
+        long[] pull = new long[npull];
+        npush = npull = 0;
+        for (int i = 0; i < deltas.size(); i += 2) {
+            System.arraycopy(deltas.get(i), 0, push, npush, deltas.get(i).length);
+            System.arraycopy(deltas.get(i + 1), 0, pull, npull, deltas.get(i + 1).length);
+            npush += deltas.get(i).length;
+            npull += deltas.get(i + 1).length;
+        }
         mover.moveAll(new MoveSet(self, other, push));
         send(reqItemsMessage(other, pull));
     }
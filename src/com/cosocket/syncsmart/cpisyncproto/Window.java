@@ -0,0 +1,237 @@
+package com.cosocket.syncsmart.cpisyncproto;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import com.cosocket.syncsmart.cpisync.Partition;
+import com.cosocket.syncsmart.cpisync.Reconciler;
+/*
+Copyright (c) 2013, Cosocket LLC
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+* Redistributions of source code must retain the above copyright notice, this
+  list of conditions and the following disclaimer.
+
+* Redistributions in binary form must reproduce the above copyright notice, this
+  list of conditions and the following disclaimer in the documentation and/or
+  other materials provided with the distribution.
+
+* Neither the name of Cosocket LLC nor the names of its
+  contributors may be used to endorse or promote products derived from
+  this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+*/
+
+/**
+ * The frontier of a traversal at one peer, i.e., the partitions it has yet to summarize, and the
+ * RANGES PDUs it has sent that the other peer has not acknowledged. Up to a window of PDUs are 
+ * outstanding at a time, so that the partitions of the frontier are reconciled concurrently rather
+ * than one PDU per round trip. Each PDU has a sequence number, and the reply to it carries that
+ * number as its acknowledgement, which matches the reply to the ranges of the PDU. The window is
+ * adapted as in TCP: it grows by one PDU per acknowledgement up to a threshold and by one PDU per 
+ * window beyond it, and it is halved when a PDU is not acknowledged within the retransmission 
+ * timeout, computed from the smoothed round trip time and its variance, in which case the PDU is
+ * sent again with exponential backoff and dropped after a few tries. The bandwidth is measured as
+ * the largest recent rate at which bytes were acknowledged, as in BBR: the bytes acknowledged in 
+ * the round trip of a PDU, its own included, over that round trip. Thread-safe.
+ * @author Dr. Rajesh Krishnan (krash@cosocket.com)
+ *
+ */
+final class Window {
+    private static final double RTOMIN   = 0.2;    // seconds
+    private static final double RTOMAX   = 60;     // seconds
+    private static final int    maxtries = 6;      // sends of a PDU before it is dropped
+    private static final int    initial  = 4;      // PDUs outstanding at the start
+    private static final int    remember = 4096;   // sequence numbers of the peer kept to detect duplicates
+    private static final int    samples  = 10;     // rate samples of which the largest is the bandwidth
+
+    private final ArrayDeque<long[]>        pending     = new ArrayDeque<long[]>();
+    private final LinkedHashMap<Long, Sent> outstanding = new LinkedHashMap<Long, Sent>();
+    private final LinkedHashMap<Long, Long> seen        = new LinkedHashMap<Long, Long>() {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> e) {return size() > remember;}
+    };
+    private long[] resume   = null;   // next partition of the starting width, null if none
+    private long   seq      = System.currentTimeMillis() << 20;  // not reused by a restarted peer
+    private int    max;
+    private double cwnd     = initial;
+    private double ssthresh;
+    private double srtt     = 0;      // seconds, 0 until measured
+    private double rttvar   = 0;
+    private double rto      = 1;
+    private long   reduced  = 0;      // nanoTime at which the window was last halved
+    private long   acked    = 0;      // bytes of the PDUs acknowledged
+    private int    rate     = 0;      // index of the next sample in rates
+    private final double[] rates = new double[samples];   // bytes per second, the latest samples
+
+    private static final class Sent {
+        private final SyncPDU pdu;
+        private final int     bytes;
+        private final long    acked;     // of the window when sent
+        private long          time;
+        private int           tries = 0;
+        private Sent(SyncPDU pdu, int bytes, long acked, long time) {
+            this.pdu = pdu; this.bytes = bytes; this.acked = acked; this.time = time;
+        }
+    }
+
+    /**
+     * Constructs a window
+     * @param max the largest number of PDUs outstanding at a time
+     */
+    Window(int max) {setMax(max);}
+
+    synchronized void setMax(int max) {
+        this.max = max < 1 ? 1 : max;
+        ssthresh = this.max;
+        if (cwnd > this.max) cwnd = this.max;
+    }
+
+    // Starts a traversal of the partitions of the width of resume from it to the end of the range, or of
+    // the pending partitions only if null, forgetting the previous one
+    synchronized void reset(long[] resume) {
+        pending.clear();
+        outstanding.clear();
+        this.resume = resume == null ? null : resume.clone();
+    }
+
+    // Adds a partition to be summarized after those already pending
+    synchronized void add(long[] x)  {pending.addLast(x);}
+
+    // Returns a partition taken by poll that did not fit in a PDU, to be summarized first
+    synchronized void push(long[] x) {pending.addFirst(x);}
+
+    // The next partition to summarize, the pending ones first and then resume and those of its width after it
+    synchronized long[] poll() {
+        if (!pending.isEmpty()) return pending.pollFirst();
+        if (resume == null) return null;
+        long[] x = resume.clone();
+        Partition.after(resume, resume);
+        if (Partition.isDone(resume)) resume = null;
+        return x;
+    }
+
+    synchronized boolean isOpen()  {return outstanding.size() < (int) cwnd;}
+    synchronized boolean isBusy()  {return !outstanding.isEmpty();}
+    synchronized long    next()    {return ++seq;}
+    synchronized double  getRTT()  {return srtt;}
+    synchronized int     getSize() {return (int) cwnd;}
+
+    // The measured bandwidth in bytes per second, 0 until measured
+    synchronized double getBandwidth() {
+        double b = 0;
+        for (double r : rates) b = r > b ? r : b;
+        return b;
+    }
+
+    // Records a PDU of about the given bytes sent with sequence number s until it is acknowledged
+    synchronized void sent(long s, SyncPDU m, int bytes) {
+        outstanding.put(s, new Sent(m, bytes, acked, System.nanoTime()));
+    }
+
+    // Returns true if the PDU s of the peer was received before, and remembers it otherwise
+    synchronized boolean isDuplicate(long s) {return seen.put(s, s) != null;}
+
+    /**
+     * Removes the acknowledged PDU and opens the window, the round trip time is sampled unless 
+     * the PDU was sent more than once
+     * @param s the sequence number of the PDU
+     * @return false if the PDU is not outstanding
+     */
+    synchronized boolean ack(long s) {
+        Sent x = outstanding.remove(s);
+        if (x == null) return false;
+        long rtt = System.nanoTime() - x.time;
+        acked   += x.bytes;
+        if (x.tries == 0) {
+            sample(1e-9 * rtt);
+            rates[rate++ % samples] = 1e9 * (acked - x.acked) / (rtt > 0 ? rtt : 1);
+        }
+        cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;
+        if (cwnd > max) cwnd = max;
+        return true;
+    }
+
+    /**
+     * Returns the PDUs not acknowledged in time to be sent again, halving the window at most once a 
+     * timeout for the losses; those sent too often are dropped along with their ranges 
+     * @return the PDUs to send again
+     */
+    synchronized List<SyncPDU> expired() {
+        List<SyncPDU> r = new ArrayList<SyncPDU>();
+        long now        = System.nanoTime();
+        boolean lost    = false;
+        for (Iterator<Sent> i = outstanding.values().iterator(); i.hasNext(); ) {
+            Sent x = i.next();
+            if (now - x.time < (long) (1e9 * Math.min(rto * (1 << x.tries), RTOMAX))) continue;
+            lost = true;
+            if (++x.tries >= maxtries) {i.remove(); continue;}
+            x.time = now;
+            r.add(x.pdu);
+        }
+        if (lost && now - reduced > (long) (1e9 * rto)) {
+            cwnd     = cwnd / 2 < 1 ? 1 : cwnd / 2;
+            ssthresh = cwnd < 2 ? 2 : cwnd;
+            reduced  = now;
+        }
+        return r;
+    }
+
+    // Averages a round trip time into srtt and rttvar, and sets the timeout from them
+    private void sample(double x) {
+        if (srtt == 0) {
+            srtt   = x;
+            rttvar = x / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - x);
+            srtt   = 0.875 * srtt + 0.125 * x;
+        }
+        rto = srtt + 4 * rttvar;
+        rto = rto < RTOMIN ? RTOMIN : (rto > RTOMAX ? RTOMAX : rto);
+    }
+
+    /**
+     * The main method tests that a traversal started at a depth, with some partitions split as if 
+     * they failed to reconcile, summarizes no partition wider than those of the depth and covers the range
+     * @param args ignored
+     * @throws Exception if a partition is too wide or the range is not covered
+     */
+    public static void main(String[] args) throws Exception {
+        System.out.println("Testing traversals started at depths 0 to 10");
+        long max = Reconciler.getDatamax();
+        for (int d = 0; d <= 10; d++) {
+            Window w = new Window(1);
+            w.reset(Partition.partition(0, max >> d, 0, max));
+            long covered = 0;
+            int n = 0;
+            long[] x;
+            while ((x = w.poll()) != null) {
+                long width = Partition.end(x) - Partition.begin(x);
+                if (width > max >> d) throw new Exception("Depth " + d + " summarizes [" + Partition.begin(x) + "," + Partition.end(x) + ")");
+                if (n++ % 3 == 0 && width >= max >> (d + 1)) {   // split, as if it failed
+                    long[][] c = Partition.children(x, 2);
+                    for (int i = c.length - 1; i >= 0; i--) w.push(c[i]);
+                } else {
+                    covered += width;
+                }
+            }
+            if (covered != max) throw new Exception("Depth " + d + " covers " + covered + " of " + max);
+        }
+        System.out.println("Traversals ok");
+    }
+}